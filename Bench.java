@@ -0,0 +1,244 @@
+import java.io.OutputStream;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Microbenchmarks for the decode and rendering hot paths in DbDo. Everything runs against an
+ * in memory stand in for a ResultSet, so no database is needed. Each benchmark is warmed up,
+ * then measured over several timed iterations and reported as ops/sec and ns/op.
+ *
+ * Run with 'sh bench.sh', or 'sh bench.sh render' to only run benchmarks whose name contains 'render'
+ */
+public class Bench {
+
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASURED_ITERATIONS = 5;
+    private static final long ITERATION_NANOS = 500_000_000L;
+
+    private static final int[] ROW_COUNTS = {100, 10_000};
+    private static final int[] VALUE_WIDTHS = {8, 64};
+    private static final int[] COLUMN_COUNTS = {10, 60};
+
+    // results go here so the jit can't throw the work away
+    public static volatile Object sink;
+
+    @FunctionalInterface
+    interface Operation {
+        Object run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String filter = args.length > 0 ? args[0] : "";
+
+        System.out.println(String.format("%-40s %16s %14s", "benchmark", "ops/sec", "ns/op"));
+
+        // resolving and decoding a column of each type
+        for (DbDo.PostgresType type : DbDo.PostgresType.values()) {
+            ResultSet resultSet = resultSet(new DbDo.PostgresType[]{ type }, 1, 16);
+            resultSet.next();
+            ResultSetMetaData metaData = resultSet.getMetaData();
+            DbDo.DecodePlan plan = new DbDo.DecodePlan(metaData);
+
+            run("getColumnType/" + type, filter, () -> DbDo.getColumnType(metaData, 1));
+            run("decode/" + type, filter, () -> plan.getDisplayValue(resultSet, 0));
+        }
+
+        // colors
+        for (DbDo.PostgresType type : DbDo.PostgresType.values()) {
+            run("getColumnColor/" + type, filter, () -> DbDo.getColumnColor(type, "value"));
+        }
+
+        // padding and cutting labels
+        for (int width : new int[]{8, 32, 128}) {
+            String label = "column_name";
+            run("fitToLength/" + width, filter, () -> DbDo.fitToLength(label, width));
+        }
+
+        // whole row decode loop
+        for (int columns : COLUMN_COUNTS) {
+            DbDo.PostgresType[] types = cycleTypes(columns);
+            run("readRecords/1000x" + columns, filter, () -> {
+                ResultSet resultSet = resultSet(types, 1000, 16);
+                DbDo.DecodePlan plan = new DbDo.DecodePlan(resultSet.getMetaData());
+                return DbDo.readRecords(resultSet, plan, 0, null);
+            });
+        }
+
+        // rendering
+        for (int rows : ROW_COUNTS) {
+            for (int width : VALUE_WIDTHS) {
+                ResultSet resultSet = resultSet(cycleTypes(10), rows, width);
+                List<List<DbDo.Record>> records = DbDo.readRecords(resultSet, new DbDo.DecodePlan(resultSet.getMetaData()), 0, null);
+                DbDo.TerminalWriter out = new DbDo.TerminalWriter(OutputStream.nullOutputStream(), 1 << 16);
+
+                run("prettyPrintRecords/" + rows + "x10/w" + width, filter, () -> {
+                    DbDo.prettyPrintRecords(records, out);
+                    return out;
+                });
+            }
+        }
+    }
+
+    private static void run(String name, String filter, Operation operation) throws Exception {
+        if (!name.contains(filter)) return;
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            iterate(operation);
+        }
+
+        double[] opsPerSecond = new double[MEASURED_ITERATIONS];
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            opsPerSecond[i] = iterate(operation);
+        }
+
+        double mean = 0;
+        for (double ops : opsPerSecond) mean += ops;
+        mean /= opsPerSecond.length;
+        double variance = 0;
+        for (double ops : opsPerSecond) variance += (ops - mean) * (ops - mean);
+        double error = Math.sqrt(variance / opsPerSecond.length);
+
+        System.out.println(String.format(
+            Locale.ROOT,
+            "%-40s %16s %14.1f",
+            name,
+            String.format(Locale.ROOT, "%.0f +- %.0f", mean, error),
+            1e9 / mean
+        ));
+    }
+
+    /**
+     * Runs the operation for one iteration's worth of time, returning ops per second
+     */
+    private static double iterate(Operation operation) throws Exception {
+        long ops = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            // batch calls so reading the clock doesn't dominate tiny operations
+            for (int i = 0; i < 64; i++) {
+                sink = operation.run();
+            }
+            ops += 64;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < ITERATION_NANOS);
+        return ops / (elapsed / 1e9);
+    }
+
+    /**
+     * Repeats every PostgresType until there are 'columns' of them
+     */
+    static DbDo.PostgresType[] cycleTypes(int columns) {
+        DbDo.PostgresType[] all = DbDo.PostgresType.values();
+        DbDo.PostgresType[] types = new DbDo.PostgresType[columns];
+        for (int i = 0; i < columns; i++) {
+            types[i] = all[i % all.length];
+        }
+        return types;
+    }
+
+    /**
+     * In memory stand in for a postgres ResultSet with one column per type, 'rows' rows and
+     * text values about 'width' characters long. Only the methods DbDo calls are implemented.
+     */
+    static ResultSet resultSet(DbDo.PostgresType[] types, long rows, int width) {
+        String[] names = new String[types.length];
+        for (int i = 0; i < types.length; i++) {
+            names[i] = types[i] + "_col_" + (i + 1);
+        }
+
+        ResultSetMetaData metaData = (ResultSetMetaData) Proxy.newProxyInstance(
+            Bench.class.getClassLoader(),
+            new Class<?>[]{ ResultSetMetaData.class },
+            (proxy, method, args) -> switch (method.getName()) {
+                case "getColumnCount" -> types.length;
+                case "getColumnName", "getColumnLabel" -> names[(int) args[0] - 1];
+                case "getColumnTypeName" -> types[(int) args[0] - 1].name();
+                case "unwrap" -> null;
+                case "isWrapperFor" -> false;
+                default -> throw new UnsupportedOperationException(method.getName());
+            }
+        );
+
+        long[] row = {0};
+        boolean[] wasNull = {false};
+        return (ResultSet) Proxy.newProxyInstance(
+            Bench.class.getClassLoader(),
+            new Class<?>[]{ ResultSet.class },
+            (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "next": return ++row[0] <= rows;
+                    case "getMetaData": return metaData;
+                    case "wasNull": return wasNull[0];
+                    case "close": return null;
+                    case "isClosed": return false;
+                    case "unwrap": return null;
+                    case "isWrapperFor": return false;
+                    default: break;
+                }
+                if (!method.getName().startsWith("get") || args == null || !(args[0] instanceof Integer)) {
+                    throw new UnsupportedOperationException(method.getName());
+                }
+
+                int column = (int) args[0] - 1;
+                Object value = value(types[column], row[0], width);
+
+                // every 16th cell of a column is null
+                wasNull[0] = (row[0] + column) % 16 == 0;
+                return convert(wasNull[0] ? null : value, method.getReturnType());
+            }
+        );
+    }
+
+    /**
+     * Typical value for a column of the type, varied a little by row
+     */
+    static Object value(DbDo.PostgresType type, long row, int width) {
+        return switch (type) {
+            case int8, bigserial -> row * 1_000_003L;
+            case int4, int2, smallserial, serial -> (int) (row % 30_000);
+            case float8 -> row * 1.5d;
+            case float4 -> row * 1.5f;
+            case money, numeric -> BigDecimal.valueOf(row * 100 + 99, 2);
+            case bool -> row % 2 == 0;
+            case bytea -> text(row, width).getBytes();
+            case date -> "2024-01-" + (10 + row % 20);
+            case time, timetz -> "12:34:" + (10 + row % 50);
+            case timestamp, timestamptz -> "2024-01-" + (10 + row % 20) + " 12:34:56.789";
+            case uuid -> "123e4567-e89b-12d3-a456-" + String.format("%012d", row);
+            case json, jsonb -> "{\"id\": " + row + ", \"name\": \"" + text(row, width) + "\"}";
+            case inet, cidr -> "10.0." + (row % 256) + ".1";
+            case point -> "(" + row + "," + (row * 2) + ")";
+            default -> text(row, width);
+        };
+    }
+
+    private static String text(long row, int width) {
+        StringBuilder text = new StringBuilder(width);
+        text.append("row ").append(row).append(' ');
+        while (text.length() < width) text.append((char) ('a' + text.length() % 26));
+        return text.substring(0, width);
+    }
+
+    /**
+     * Turns a value into what the called getter would return, including the 0 and false
+     * primitive getters return for nulls
+     */
+    static Object convert(Object value, Class<?> returnType) {
+        if (returnType == long.class) return value instanceof Number number ? number.longValue() : 0L;
+        if (returnType == int.class) return value instanceof Number number ? number.intValue() : 0;
+        if (returnType == double.class) return value instanceof Number number ? number.doubleValue() : 0d;
+        if (returnType == float.class) return value instanceof Number number ? number.floatValue() : 0f;
+        if (returnType == boolean.class) return value instanceof Boolean bool && bool;
+        if (value == null) return null;
+        if (returnType == String.class) return value instanceof byte[] bytes ? new String(bytes) : value.toString();
+        if (returnType == BigDecimal.class) return value instanceof BigDecimal decimal ? decimal : new BigDecimal(value.toString());
+        if (returnType == byte[].class) return value instanceof byte[] bytes ? bytes : value.toString().getBytes();
+        if (returnType.isInstance(value)) return value;
+        return returnType == Object.class ? value : null;
+    }
+}
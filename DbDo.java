@@ -1,25 +1,107 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.sql.Statement;
+import java.sql.Types;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGStatement;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+import org.postgresql.core.BaseConnection;
+import org.postgresql.core.TransactionState;
 
 
 class DbDo {
 
     private static int EXTRA_SPACE_BEFORE_VALUE = 3;
+    private static int DEFAULT_FETCH_SIZE = 1000;
+    private static int DEFAULT_BATCH_SIZE = 1000;
+    private static int DEFAULT_MAX_VALUE = 500;
+    private static int DEFAULT_CACHE_SIZE_MB = 256;
+    private static int DEFAULT_MEMORY_MB = 256;
 
     public static void main(String[] args) {
         Map<String, String> shortArgs = Map.of(
@@ -43,12 +125,239 @@ class DbDo {
             """
         );
 
+        Map<String, String> longArgs = Map.ofEntries(
+            Map.entry(
+                "--fetch-size",
+                """
+                Number of rows fetched from the server per round trip when streaming.
+                Example '--fetch-size=500'. Defaults to %d
+                """.formatted(DEFAULT_FETCH_SIZE)
+            ),
+            Map.entry(
+                "--schema",
+                """
+                Only print schemas matching this name with --tables. '*' and '?' work as wildcards.
+                Example '--schema=sales*'
+                """
+            ),
+            Map.entry(
+                "--table",
+                """
+                Only print tables matching this name with --tables. '*' and '?' work as wildcards.
+                Example '--table=user*'
+                """
+            ),
+            Map.entry(
+                "--export",
+                """
+                Write script results out as 'csv', 'tsv' or 'jsonl' instead of pretty printing them.
+                Plain queries are exported with COPY. Example '--export=csv'
+                """
+            ),
+            Map.entry(
+                "--out",
+                """
+                File to write --export output to. Defaults to stdout. Example '--out=users.csv'
+                """
+            ),
+            Map.entry(
+                "--import",
+                """
+                Csv, tsv or json lines file to load into the table given by --into. The format comes
+                from the file extension and csv/tsv files need a header row. Example '--import=users.csv'
+                """
+            ),
+            Map.entry(
+                "--into",
+                """
+                Table to load the --import file into. Example '--into=public.users'
+                """
+            ),
+            Map.entry(
+                "--batch-size",
+                """
+                Rows per batch when an --import can't use COPY and falls back to inserts.
+                Defaults to %d
+                """.formatted(DEFAULT_BATCH_SIZE)
+            ),
+            Map.entry(
+                "--max-value",
+                """
+                Longest value to print, in characters. Longer text, json, xml and bytea values are
+                cut short on the server and shown with their full size. 0 prints everything.
+                Defaults to %d
+                """.formatted(DEFAULT_MAX_VALUE)
+            ),
+            Map.entry(
+                "--cache-ttl",
+                """
+                With --cache, replay cached results younger than this many seconds without
+                connecting at all, instead of checking the tables for changes. Example '--cache-ttl=300'
+                """
+            ),
+            Map.entry(
+                "--cache-size",
+                """
+                Most disk space --cache can use in MB. The least recently used results are removed
+                first. Defaults to %d
+                """.formatted(DEFAULT_CACHE_SIZE_MB)
+            ),
+            Map.entry(
+                "--memory",
+                """
+                Most heap in MB the rows of a query can take up while they're read. Rows past that
+                are kept in a temporary file mapped into memory. Defaults to %d
+                """.formatted(DEFAULT_MEMORY_MB)
+            ),
+            Map.entry(
+                "--params",
+                """
+                Csv, tsv or json lines file of values for the script's ':name' placeholders, one set
+                per row. Each statement is prepared once and run for every row, queries printing
+                each row's results and other statements running in batches of --batch-size.
+                Single values can be given as args like ':user_id=42'. Example '--params=ids.csv'
+                """
+            ),
+            Map.entry(
+                "--agent-idle",
+                """
+                Seconds an --agent keeps an unused database connection open before closing it.
+                Defaults to 300
+                """
+            ),
+            Map.entry(
+                "--socket",
+                """
+                Unix socket the --agent listens on and --via-agent sends runs to. Defaults to
+                ~/.dbdo/agent.sock
+                """
+            ),
+            Map.entry(
+                "--diff",
+                """
+                Second database url to run the script's queries against at the same time, printing
+                only the rows that were added, removed or changed compared to -d. Uses the same
+                username and password. Example '--diff=jdbc:postgresql://staging:5432/my_db'
+                """
+            ),
+            Map.entry(
+                "--key",
+                """
+                Comma separated columns that identify a row for --diff. Both sides are sorted by
+                them and merged, and rows with the same key show their changed values. Without
+                a key rows can only be added or removed. Example '--key=id'
+                """
+            ),
+            Map.entry(
+                "--parallel",
+                """
+                Number of connections used to run read only statements in the script at the same
+                time. Results are still printed in script order, so a statement's results are held
+                in memory until the ones before it are printed, even with --stream. Example
+                '--parallel=4'
+                """
+            )
+        );
+
+        Map<String, String> booleanArgs = Map.ofEntries(
+            Map.entry(
+                "--tables",
+                """
+                Print out all schemas and tables in the database
+                """
+            ),
+            Map.entry(
+                "--page",
+                """
+                Browse query results in a full screen pager. Rows are only fetched from the server
+                as you scroll to them
+                """
+            ),
+            Map.entry(
+                "--watch",
+                """
+                Keep running, and re-run the script every time it's saved. The connection is kept
+                open between runs and reopened if it drops
+                """
+            ),
+            Map.entry(
+                "--refresh",
+                """
+                Reload the --tables catalog or --cache results from the database instead of using the
+                cached copy. The catalog cache is normally only used when the catalog hasn't changed
+                """
+            ),
+            Map.entry(
+                "--cache",
+                """
+                Replay the results of read only scripts from ~/.dbdo/results when the same script is
+                run again against the same database and the tables it reads haven't changed, judged
+                by their row change counters. Changes made in the last second or so may not show up
+                in the counters yet, and on a replica any replayed write counts as a change. Scripts
+                reading foreign tables aren't cached, and tables read by functions the queries call
+                aren't tracked, so use --refresh or --cache-ttl for those
+                """
+            ),
+            Map.entry(
+                "--stats",
+                """
+                Print how long each statement spent executing, waiting for the first row, fetching,
+                decoding and rendering, with row counts and throughput. '--stats=json' also writes
+                each report as a json line to stderr
+                """
+            ),
+            Map.entry(
+                "--stream",
+                """
+                Fetch script results through a server side cursor and print them chunk by
+                chunk as they arrive instead of loading every row before printing. Each query
+                is read in a short transaction of its own, other statements still autocommit
+                and a transaction the script opens with BEGIN is used as it is
+                """
+            ),
+            Map.entry(
+                "--agent",
+                """
+                Stay running in the background and serve --via-agent runs, keeping database
+                connections open between them. Start it with 'java -jar DbDo.jar --agent &'
+                """
+            ),
+            Map.entry(
+                "--via-agent",
+                """
+                Hand this run to a running --agent, which skips jvm warmup and logging in to the
+                database. Runs here as usual if no agent is listening. --watch and --page always
+                run here since they need the terminal
+                """
+            ),
+            Map.entry(
+                "--explain",
+                """
+                Print each statement's plan from EXPLAIN (ANALYZE, BUFFERS) as a tree instead of its
+                results, highlighting the nodes that take the most time or buffer reads and flagging
+                row estimates that are far off. Each statement runs in a transaction that's rolled
+                back after it's measured, and ones EXPLAIN doesn't take, like DDL or CALL, are run
+                and rolled back the same way. '--explain=plan' only plans the statements without
+                running any of them, skipping the ones EXPLAIN doesn't take
+                """
+            ),
+            Map.entry(
+                "--preview",
+                """
+                Only fetch about a screen of rows from each query, adding a LIMIT worked out from
+                the terminal size, and print the planner's estimate of how many rows there are in
+                all. '--preview=sample' takes them from a TABLESAMPLE of single table queries
+                instead of the first rows, falling back to the first rows for anything else
+                """
+            )
+        );
+
 
         ArgParser parser = new ArgParser(
             args, 
             shortArgs, 
-            null, 
-            Map.of("--tables", "Print out all schemas and tables in the database"), 
+            longArgs, 
+            booleanArgs, 
             Map.of("-h", "View help", "--help", "View help"), 
             "Db Do!",
             "An app for querying a database using sql files",
@@ -74,58 +383,148 @@ class DbDo {
             String username = parsedArgs.get("-u");
             String password = parsedArgs.get("-p");
             String script = parsedArgs.get("-s");
+            RunOptions options = new RunOptions();
+            options.stream = parsedArgs.containsKey("--stream");
+            options.page = parsedArgs.containsKey("--page");
+            if (parsedArgs.containsKey("--fetch-size")) {
+                options.fetchSize = Integer.parseInt(parsedArgs.get("--fetch-size"));
+            }
+            if (options.fetchSize < 1) throw new IllegalArgumentException("--fetch-size must be at least 1");
+            if (parsedArgs.containsKey("--parallel")) {
+                options.parallel = Integer.parseInt(parsedArgs.get("--parallel"));
+            }
+            if (options.parallel < 1) throw new IllegalArgumentException("--parallel must be at least 1");
+            if (parsedArgs.containsKey("--export")) {
+                options.exportFormat = ExportFormat.of(parsedArgs.get("--export"));
+            }
+            if (parsedArgs.containsKey("--out")) {
+                options.exportFile = Path.of(parsedArgs.get("--out"));
+            }
+            if (parsedArgs.containsKey("--batch-size")) {
+                options.batchSize = Integer.parseInt(parsedArgs.get("--batch-size"));
+            }
+            if (options.batchSize < 1) throw new IllegalArgumentException("--batch-size must be at least 1");
+            if (parsedArgs.containsKey("--max-value")) {
+                options.maxValue = Integer.parseInt(parsedArgs.get("--max-value"));
+            }
+            if (parsedArgs.containsKey("--stats")) {
+                options.stats = true;
+                options.statsJson = "json".equals(parsedArgs.get("--stats"));
+            }
+            for (Entry<String, String> arg : parsedArgs.entrySet()) {
+                if (arg.getKey().startsWith(":")) options.parameters.put(arg.getKey().substring(1), arg.getValue());
+            }
+            if (parsedArgs.containsKey("--params")) {
+                options.parameterFile = Path.of(parsedArgs.get("--params"));
+            }
+            options.explain = parsedArgs.containsKey("--explain");
+            options.explainAnalyze = options.explain && !"plan".equals(parsedArgs.get("--explain"));
+            if (options.explain && !parsedArgs.get("--explain").matches("|plan")) {
+                throw new IllegalArgumentException("--explain takes no value or 'plan', not '" + parsedArgs.get("--explain") + "'");
+            }
+            if (options.explain && (options.exportFormat != null || options.page)) {
+                throw new IllegalArgumentException("--explain can't be used with --export or --page");
+            }
+            options.diffUrl = parsedArgs.get("--diff");
+            if (parsedArgs.containsKey("--key")) {
+                options.diffKeys = Arrays.asList(parsedArgs.get("--key").split(","));
+            }
+            if (options.diffUrl != null && (options.exportFormat != null || options.page || options.explain)) {
+                throw new IllegalArgumentException("--diff can't be used with --export, --page or --explain");
+            }
+            options.preview = parsedArgs.containsKey("--preview");
+            options.previewSample = "sample".equals(parsedArgs.get("--preview"));
+            if (options.preview && (options.exportFormat != null || options.page || options.explain || options.diffUrl != null)) {
+                throw new IllegalArgumentException("--preview can't be used with --export, --page, --explain or --diff");
+            }
+            // explained, diffed and previewed runs aren't results worth replaying
+            options.cache = parsedArgs.containsKey("--cache") && !options.explain && options.diffUrl == null && !options.preview;
+            if (parsedArgs.containsKey("--cache-ttl")) {
+                options.cacheTtlSeconds = Long.parseLong(parsedArgs.get("--cache-ttl"));
+            }
+            if (parsedArgs.containsKey("--cache-size")) {
+                options.cacheSizeMb = Long.parseLong(parsedArgs.get("--cache-size"));
+            }
+            if (options.cacheSizeMb < 1) throw new IllegalArgumentException("--cache-size must be at least 1");
+            if (parsedArgs.containsKey("--memory")) {
+                options.memoryMb = Long.parseLong(parsedArgs.get("--memory"));
+            }
+            if (options.memoryMb < 1) throw new IllegalArgumentException("--memory must be at least 1");
+            options.url = url;
+            options.username = username;
+            options.password = password;
+
+            Path socket = parsedArgs.containsKey("--socket") ? Path.of(parsedArgs.get("--socket")) : Agent.DEFAULT_SOCKET;
+            if (parsedArgs.containsKey("--agent")) {
+                long idleSeconds = parsedArgs.containsKey("--agent-idle") ? Long.parseLong(parsedArgs.get("--agent-idle")) : 300;
+                Agent.serve(socket, idleSeconds);
+                return;
+            }
+
+            // hand the run to a resident agent if one is up, otherwise carry on here
+            if (parsedArgs.containsKey("--via-agent") && !parsedArgs.containsKey("--watch") && !options.page) {
+                String[] forwarded = Arrays.stream(args).filter(arg -> !arg.equals("--via-agent")).toArray(String[]::new);
+                if (Agent.forward(socket, forwarded)) return;
+            }
 
             // print out table definitions if present
             if (parsedArgs.containsKey("--tables")) {
-                printSchemas(url, username, password);
+                printSchemas(
+                    parsedArgs.get("--schema"), 
+                    parsedArgs.get("--table"), 
+                    parsedArgs.containsKey("--refresh"),
+                    options
+                );
             }
 
-            // run any user provided scripts
-            if (script != null) {
+            // load a data file into a table
+            if (parsedArgs.containsKey("--import")) {
+                String table = parsedArgs.get("--into");
+                if (table == null) throw new IllegalArgumentException("--import needs a table to load into, such as '--into=public.users'");
 
-                // Perform database operations here
-                Connection connection = DriverManager.getConnection(url, username, password);
+                try (Connection connection = connect(url, username, password)) {
+                    Importer.importFile(connection, Path.of(parsedArgs.get("--import")), table, options);
+                }
+            }
+
+            // keep re-running the script whenever it's saved
+            if (script != null && parsedArgs.containsKey("--watch")) {
+                watchScript(Path.of(script), options);
+            }
+            // run any user provided scripts
+            else if (script != null) {
 
-                Statement statement = connection.createStatement();
                 String sql = Files.readString(
                     Path.of(script)
                 );
-                statement.execute(sql);
-                ResultSet resultSet = statement.getResultSet();
-
-                if (resultSet != null) {
-
-                    // Process the ResultSet
-                    List<List<Record>> allRecords = new ArrayList<>();
-                    while (resultSet.next()) {
+                ResultCache cache = options.cache ? ResultCache.of(sql, options) : null;
+                boolean refresh = parsedArgs.containsKey("--refresh");
 
-                        List<Record> records = new ArrayList<>();
-                        for (int i = 1; i <= resultSet.getMetaData().getColumnCount(); i++) {
-                            String columnName = resultSet.getMetaData().getColumnName(i);
-                            Object colValue = getColumnValue(resultSet, i);
-                            String columnValue = colValue == null ? "null" : colValue.toString();
-
-                            PostgresType type = getColumnType(resultSet, i);
-                            records.add(
-                                new Record(
-                                    type,
-                                    columnName,
-                                    columnValue
-                                )
-                            );
+                // with a ttl a fresh enough result is replayed without connecting at all
+                if (cache != null && !refresh && options.cacheTtlSeconds > 0 && cache.replay(null, TERMINAL)) return;
 
-                        }
-                        allRecords.add(
-                            records
-                        );
+                // Perform database operations here
+                long connectStart = System.nanoTime();
+                try (Connection connection = connect(url, username, password)) {
+                    if (options.stats) {
+                        Stats stats = new Stats("connect");
+                        stats.connectNanos = System.nanoTime() - connectStart;
+                        stats.print(TERMINAL, options.statsJson);
+                        TERMINAL.flush();
                     }
 
-                    // pretty print out records
-                    prettyPrintRecords(allRecords);
-
+                    if (cache == null) {
+                        runScript(connection, sql, options, TERMINAL);
+                    }
+                    else if (refresh || !cache.replay(connection, TERMINAL)) {
+                        // print as usual while keeping a copy of the output to replay next time
+                        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+                        TerminalWriter out = new TerminalWriter(cache.capture(System.out, captured), 1 << 16);
+                        cache.snapshot(connection);
+                        runScript(connection, sql, options, out);
+                        cache.store(connection, captured);
+                    }
                 }
-
-                connection.close(); // Close the connection when done
             }
 
 
@@ -139,426 +538,5558 @@ class DbDo {
     
     }
 
-    private static void prettyPrintRecords(List<List<Record>> allRecords) throws SQLException {
+    /**
+     * Splits the script into statements and runs them one after another, printing every result 
+     * set and update count each statement produces along with how long it took
+     */
+    private static void runScript(Connection connection, String sql, RunOptions options, TerminalWriter out) throws SQLException {
+        List<String> statements = splitStatements(sql);
+        // without any values given the script runs exactly as written
+        boolean parameterized = !options.parameters.isEmpty() || options.parameterFile != null;
+        boolean hasParameters = parameterized && statements.stream().anyMatch(statement -> !NamedParameters.parse(statement).names.isEmpty());
+        if (hasParameters && (options.exportFormat != null || options.page || options.explain || options.diffUrl != null || options.preview)) {
+            throw new IllegalArgumentException("':name' placeholders can't be used with --export, --page, --explain, --diff or --preview");
+        }
+
+        if (options.exportFormat != null) {
+            Exporter.exportScript(connection, statements, options);
+        }
+        else if (options.page) {
+            Pager.pageScript(connection, statements, options);
+        }
+        else if (options.diffUrl != null) {
+            Differ.diffScript(connection, statements, options, out);
+        }
+        else if (options.parallel > 1 && statements.size() > 1 && !hasParameters && !options.explain && !options.preview) {
+            runScriptInParallel(connection, statements, options, out);
+        }
+        else {
+            for (int i = 0; i < statements.size(); i++) {
+                if (statements.size() > 1) {
+                    printStatementHeader(i + 1, statements.size(), statements.get(i), out);
+                }
+                NamedParameters parameters = hasParameters ? NamedParameters.parse(statements.get(i)) : null;
+                if (options.explain) {
+                    Explainer.explainStatement(connection, statements.get(i), options, out);
+                }
+                else if (options.preview) {
+                    Previewer.previewStatement(connection, statements.get(i), options, out);
+                }
+                else if (parameters == null || parameters.names.isEmpty()) {
+                    runStatement(connection, statements.get(i), options, out);
+                }
+                else if (options.stream && isReadOnly(parameters.sql)) {
+                    readThroughCursor(connection, () -> {
+                        runParameterized(connection, parameters, options, out);
+                        return null;
+                    });
+                }
+                else {
+                    runParameterized(connection, parameters, options, out);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the script, then runs it again every time the file changes, keeping the process and 
+     * connection open in between so each run only costs as much as the queries themselves. 
+     * Reconnects if the connection drops between or during runs.
+     */
+    private static void watchScript(Path script, RunOptions options) throws IOException {
+        Path file = script.toAbsolutePath();
+        Connection connection = null;
+
+        try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+            // watch the directory since many editors save by replacing the file
+            file.getParent().register(
+                watcher, 
+                StandardWatchEventKinds.ENTRY_CREATE, 
+                StandardWatchEventKinds.ENTRY_MODIFY
+            );
+
+            while (true) {
+                System.out.print(AnsiControl.CLEAR_SREEN);
+                System.out.flush();
+
+                try {
+                    connection = reconnectIfNeeded(connection, options);
+                    runWatchedScript(connection, file, options);
+                }
+                catch (SQLException e) {
+                    // retry once on a fresh connection if this one died part way through
+                    if (connection != null && !isConnectionValid(connection)) {
+                        try {
+                            connection = reconnectIfNeeded(connection, options);
+                            runWatchedScript(connection, file, options);
+                        }
+                        catch (SQLException | IOException | RuntimeException retryException) {
+                            System.err.println("Error: " + retryException.getMessage());
+                        }
+                    }
+                    else {
+                        System.err.println("Error: " + e.getMessage());
+                    }
+                }
+                catch (IOException | RuntimeException e) {
+                    // a file caught part way through being saved or a script that can't run, 
+                    // either way the next save gets another go
+                    System.err.println("Error: " + e.getMessage());
+                }
+
+                System.out.println();
+                System.out.println(AnsiControl.color(120, 120, 120) + "Watching " + script + " for changes, ctrl+c to quit" + AnsiControl.RESET);
+                waitForChange(watcher, file.getFileName());
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            if (connection != null) {
+                try {
+                    connection.close();
+                }
+                catch (SQLException e) {
+                    // shutting down anyway
+                }
+            }
+        }
+    }
+
+    private static void runWatchedScript(Connection connection, Path file, RunOptions options) throws SQLException, IOException {
+        String sql = Files.readString(file);
+        try {
+            runScript(connection, sql, options, TERMINAL);
+        }
+        catch (SQLException | RuntimeException e) {
+            // don't leave a failed transaction open for the next run
+            if (isConnectionValid(connection) && !connection.getAutoCommit()) connection.rollback();
+            throw e;
+        }
+    }
+
+    private static Connection reconnectIfNeeded(Connection connection, RunOptions options) throws SQLException {
+        if (connection != null && isConnectionValid(connection)) return connection;
+
+        if (connection != null) {
+            try {
+                connection.close();
+            }
+            catch (SQLException e) {
+                // already broken
+            }
+        }
+        return connect(options.url, options.username, options.password);
+    }
+
+    /**
+     * Opens a connection, borrowing a logged in one from the pool when running inside an agent
+     */
+    private static Connection connect(String url, String username, String password) throws SQLException {
+        if (Agent.isRunning()) return Agent.connect(url, username, password);
+        return DriverManager.getConnection(url, username, password);
+    }
+
+    /**
+     * Whether the server is outside any transaction, which autocommit alone doesn't tell since 
+     * a script can send BEGIN itself. Connections that can't say are treated as busy.
+     */
+    static boolean isTransactionIdle(Connection connection) throws SQLException {
+        if (!connection.isWrapperFor(BaseConnection.class)) return false;
+        return connection.unwrap(BaseConnection.class).getTransactionState() == TransactionState.IDLE;
+    }
+
+    interface CursorRead<T> {
+        T read() throws SQLException;
+    }
+
+    /**
+     * The postgres driver only reads through a cursor with autocommit off and a fetch size set, 
+     * otherwise it pulls the whole result into memory before returning the first row. So when 
+     * the server is outside any transaction the read gets a short one of its own, committed as 
+     * soon as it's done, and everything else in the script keeps running in autocommit. Inside 
+     * a transaction the script began itself the read just runs there.
+     */
+    static <T> T readThroughCursor(Connection connection, CursorRead<T> read) throws SQLException {
+        boolean own = connection.getAutoCommit() && isTransactionIdle(connection);
+        if (own) connection.setAutoCommit(false);
+        try {
+            T result = read.read();
+            if (own) {
+                connection.commit();
+                connection.setAutoCommit(true);
+            }
+            return result;
+        }
+        catch (SQLException | RuntimeException e) {
+            if (own) {
+                try {
+                    connection.rollback();
+                    connection.setAutoCommit(true);
+                }
+                catch (SQLException restoreError) {
+                    e.addSuppressed(restoreError);
+                }
+            }
+            throw e;
+        }
+    }
+
+    private static boolean isConnectionValid(Connection connection) {
+        try {
+            return connection.isValid(2);
+        }
+        catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Blocks until the named file in the watched directory changes. Editors often write a file in 
+     * several steps, so events that come right after the first are swallowed.
+     */
+    private static void waitForChange(WatchService watcher, Path fileName) throws InterruptedException {
+        boolean changed = false;
+        while (!changed) {
+            WatchKey key = watcher.take();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (fileName.equals(event.context())) changed = true;
+            }
+            key.reset();
+        }
+
+        WatchKey key;
+        while ((key = watcher.poll(50, TimeUnit.MILLISECONDS)) != null) {
+            key.pollEvents();
+            key.reset();
+        }
+    }
+
+    /**
+     * Runs read only statements at the same time on a small pool of connections. Each statement's 
+     * output is rendered into its own buffer and printed in script order as soon as everything 
+     * before it has been printed. With --stream the first of each run of them prints straight 
+     * through instead, since nothing is waiting ahead of it. Any statement that might write acts 
+     * as a barrier and runs on the main connection once the statements before it are done.
+     */
+    private static void runScriptInParallel(Connection connection, List<String> statements, RunOptions options, TerminalWriter out) throws SQLException {
+        ConnectionPool pool = new ConnectionPool(options.url, options.username, options.password, options.parallel);
+        ExecutorService executor = Executors.newFixedThreadPool(options.parallel, runnable -> {
+            Thread thread = new Thread(runnable, "db-do-query");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            int i = 0;
+            while (i < statements.size()) {
+
+                // queue up the run of read only statements starting here
+                List<Future<byte[]>> pending = new ArrayList<>();
+                while (i + pending.size() < statements.size() && isReadOnly(statements.get(i + pending.size()))) {
+                    String statementSql = statements.get(i + pending.size());
+                    boolean head = options.stream && pending.isEmpty();
+                    if (head) printStatementHeader(i + 1, statements.size(), statementSql, out);
+                    pending.add(executor.submit(() -> {
+                        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                        TerminalWriter bufferWriter = head ? out : new TerminalWriter(buffer, 1 << 16);
+                        Connection pooled = pool.acquire();
+                        try {
+                            runStatement(pooled, statementSql, options, bufferWriter);
+                        }
+                        finally {
+                            pool.release(pooled);
+                        }
+                        return buffer.toByteArray();
+                    }));
+                }
+
+                // print them out in order as they finish
+                for (int j = 0; j < pending.size(); j++) {
+                    byte[] output = awaitResult(pending.get(j));
+                    if (!options.stream || j > 0) {
+                        printStatementHeader(i + 1, statements.size(), statements.get(i), out);
+                        out.write(output);
+                    }
+                    out.flush();
+                    i++;
+                }
+
+                // then run the next statement that might write by itself
+                if (i < statements.size()) {
+                    printStatementHeader(i + 1, statements.size(), statements.get(i), out);
+                    runStatement(connection, statements.get(i), options, out);
+                    i++;
+                }
+            }
+        }
+        finally {
+            executor.shutdownNow();
+            pool.close();
+        }
+    }
+
+    private static <T> T awaitResult(Future<T> future) throws SQLException {
+        try {
+            return future.get();
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException sqlException) throw sqlException;
+            throw new RuntimeException(e.getCause());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Whether the statement only reads, so it's safe to run on a separate read only connection 
+     * alongside others. Anything that isn't obviously a plain query is treated as a write.
+     */
+    public static boolean isReadOnly(String sql) {
+        String code = sql.lines()
+            .filter(line -> !line.trim().startsWith("--"))
+            .collect(Collectors.joining("\n"))
+            .trim()
+            .toLowerCase();
+
+        boolean isQuery = code.startsWith("select") || code.startsWith("with") || 
+            code.startsWith("values") || code.startsWith("table") || code.startsWith("show");
+        return isQuery && !WRITE_KEYWORDS.matcher(code).find();
+    }
+    private static final Pattern WRITE_KEYWORDS = Pattern.compile("\\b(insert|update|delete|merge|into|for\\s+(no\\s+key\\s+)?update|for\\s+(key\\s+)?share|nextval|setval)\\b");
+
+    /**
+     * Runs a single statement and prints every result it produces along with a footer 
+     * showing the row or update count and how long it took
+     */
+    private static void runStatement(Connection connection, String sql, RunOptions options, TerminalWriter out) throws SQLException {
+        long start = System.nanoTime();
+        // have the server cut big values short so only the part that gets printed is sent
+        ValueRewrite rewrite = options.maxValue > 0 && Exporter.isCopyable(sql) ? 
+            ValueRewrite.of(connection, sql, options.maxValue) : 
+            null;
+        runStatement(connection, sql, rewrite, start, options, out);
+    }
+
+    /**
+     * Runs the statement with a rewrite the caller already worked out, or none
+     */
+    private static void runStatement(Connection connection, String sql, ValueRewrite rewrite, long start, RunOptions options, TerminalWriter out) throws SQLException {
+        // plain queries are read through a cursor, either streamed or into a compact ResultStore,
+        // the driver would otherwise hold every row as a list of byte arrays until the last one
+        // arrived. A cursor only lives inside a transaction, which is committed as soon as the
+        // rows are read, so this is only done when the script hasn't opened one with BEGIN.
+        boolean cursorRead = Exporter.isCopyable(sql) && connection.getAutoCommit() && isTransactionIdle(connection);
+        boolean buffered = !options.stream && cursorRead;
+
+        try (Statement statement = connection.createStatement()) {
+            if (options.stream || buffered) statement.setFetchSize(options.fetchSize);
+            Stats stats = options.stats ? new Stats(sql) : null;
+
+            if (cursorRead) connection.setAutoCommit(false);
+            boolean isResultSet = statement.execute(rewrite != null ? rewrite.sql : sql);
+            if (stats != null) stats.executeNanos = System.nanoTime() - start;
+            printResults(statement, isResultSet, sql, rewrite, buffered, start, options, out, stats);
+            if (cursorRead) {
+                connection.commit();
+                connection.setAutoCommit(true);
+            }
+        }
+        catch (SQLException e) {
+            if (cursorRead) {
+                try {
+                    connection.rollback();
+                    connection.setAutoCommit(true);
+                }
+                catch (SQLException restoreError) {
+                    e.addSuppressed(restoreError);
+                }
+            }
+            throw e;
+        }
+        out.flush();
+    }
+
+    /**
+     * Runs a statement with ':name' placeholders as a single prepared statement, once with the 
+     * values given as args or once per row of the --params file. Queries print each row's 
+     * results as they arrive, anything else is sent in batches of --batch-size.
+     */
+    private static void runParameterized(Connection connection, NamedParameters parameters, RunOptions options, TerminalWriter out) throws SQLException {
+        long start = System.nanoTime();
+        try (
+            PreparedStatement statement = connection.prepareStatement(parameters.sql);
+            ParameterReader reader = ParameterReader.open(options)
+        ) {
+            // parse and plan on the server the first time and reuse that for every row, the 
+            // driver otherwise waits for the fifth execution before preparing server side
+            if (statement.isWrapperFor(PGStatement.class)) statement.unwrap(PGStatement.class).setPrepareThreshold(1);
+            if (options.stream) statement.setFetchSize(options.fetchSize);
+
+            boolean batch = !isReadOnly(parameters.sql) && !RETURNING.matcher(parameters.sql.toLowerCase()).find();
+
+            long rows = 0;
+            long affected = 0;
+            int pending = 0;
+            Map<String, String> values;
+            while ((values = reader.next()) != null) {
+                rows++;
+                parameters.bind(statement, values);
+                if (batch) {
+                    statement.addBatch();
+                    if (++pending == options.batchSize) {
+                        affected += sumUpdateCounts(statement.executeBatch());
+                        pending = 0;
+                    }
+                    continue;
+                }
+
+                if (reader.isFile()) printParameterHeader(rows, parameters, values, out);
+                long rowStart = System.nanoTime();
+                Stats stats = options.stats ? new Stats(parameters.sql) : null;
+                boolean isResultSet = statement.execute();
+                if (stats != null) stats.executeNanos = System.nanoTime() - rowStart;
+                printResults(statement, isResultSet, parameters.sql, null, false, rowStart, options, out, stats);
+                out.flush();
+            }
+
+            if (batch) {
+                if (pending > 0) affected += sumUpdateCounts(statement.executeBatch());
+                printStatementFooter(
+                    affected + (affected == 1 ? " row" : " rows") + " affected by " + rows + (rows == 1 ? " parameter set" : " parameter sets"), 
+                    start, 
+                    out
+                );
+            }
+        }
+        catch (IOException e) {
+            throw new SQLException("Couldn't read " + options.parameterFile + ": " + e.getMessage(), e);
+        }
+        out.flush();
+    }
+
+    private static final Pattern RETURNING = Pattern.compile("\\breturning\\b");
+
+    private static long sumUpdateCounts(int[] counts) {
+        long sum = 0;
+        for (int count : counts) {
+            // SUCCESS_NO_INFO is negative
+            if (count > 0) sum += count;
+        }
+        return sum;
+    }
+
+    private static void printParameterHeader(long number, NamedParameters parameters, Map<String, String> values, TerminalWriter out) {
+        String preview = parameters.names.stream()
+            .distinct()
+            .map(name -> name + "=" + values.get(name))
+            .collect(Collectors.joining(", "));
+        if (preview.length() > 100) preview = preview.substring(0, 100) + "...";
+
+        out.newLine();
+        out.println(
+            AnsiControl.color(137, 49, 140) + "PARAMS " + number + 
+            AnsiControl.color(120, 120, 120) + "   " + preview + AnsiControl.RESET
+        );
+    }
+
+    /**
+     * Prints every result set and update count the executed statement produced, starting with 
+     * the current one. Buffered result sets are read into a ResultStore before they're printed.
+     */
+    private static void printResults(Statement statement, boolean isResultSet, String sql, ValueRewrite rewrite, boolean buffered, long start, RunOptions options, TerminalWriter out, Stats stats) throws SQLException {
+        while (true) {
+            if (isResultSet) {
+                try (ResultSet resultSet = statement.getResultSet()) {
+                    long rows = buffered ? 
+                        printBufferedResultSet(resultSet, rewrite, options, out, stats) : 
+                        printResultSet(resultSet, rewrite, options, out, stats);
+                    rewrite = null;
+                    printStatementFooter(rows + (rows == 1 ? " row" : " rows"), start, out);
+                }
+            }
+            else {
+                int updateCount = statement.getUpdateCount();
+                if (updateCount == -1) break;
+                printStatementFooter(updateCount + (updateCount == 1 ? " row" : " rows") + " affected", start, out);
+            }
+            if (stats != null) {
+                stats.print(out, options.statsJson);
+                stats = new Stats(sql);
+            }
+
+            start = System.nanoTime();
+            if (stats != null) stats.startNanos = start;
+            isResultSet = statement.getMoreResults();
+        }
+    }
+
+    /**
+     * Prints out every row in the result set, returning how many rows there were
+     */
+    private static long printResultSet(ResultSet resultSet, ValueRewrite rewrite, RunOptions options, TerminalWriter out, Stats stats) throws SQLException {
+        DecodePlan plan = new DecodePlan(resultSet.getMetaData(), rewrite, options.maxValue, TypeRegistry.of(resultSet));
+
+        // lay out the cards from the first chunk, then print each chunk as soon as it's read
+        List<List<Record>> chunk = readRecords(resultSet, plan, options.fetchSize, stats);
+        long renderStart = System.nanoTime();
+        if (chunk.isEmpty()) {
+            prettyPrintRecords(chunk, out);
+            if (stats != null) stats.renderNanos += System.nanoTime() - renderStart;
+            return 0;
+        }
+        CardLayout layout = CardLayout.fromSample(chunk, plan.getLabelWidth(), getTerminalWidth());
+        printCards(chunk, layout, out);
+        if (stats != null) stats.renderNanos += System.nanoTime() - renderStart;
+
+        long rows = chunk.size();
+        while (chunk.size() == options.fetchSize) {
+            chunk = readRecords(resultSet, plan, options.fetchSize, stats);
+            renderStart = System.nanoTime();
+            printCards(chunk, layout, out);
+            if (stats != null) stats.renderNanos += System.nanoTime() - renderStart;
+            rows += chunk.size();
+        }
+        return rows;
+    }
+
+    /**
+     * Reads every row in the result set into a ResultStore, then prints them from there, 
+     * returning how many rows there were
+     */
+    private static long printBufferedResultSet(ResultSet resultSet, ValueRewrite rewrite, RunOptions options, TerminalWriter out, Stats stats) throws SQLException {
+        DecodePlan plan = new DecodePlan(resultSet.getMetaData(), rewrite, options.maxValue, TypeRegistry.of(resultSet));
+
+        try (ResultStore store = new ResultStore(plan, options.memoryMb * 1024 * 1024)) {
+            store.readAll(resultSet, stats);
+
+            long renderStart = System.nanoTime();
+            long rows = store.size();
+            List<List<Record>> chunk = store.toRecords(0, Math.min(rows, options.fetchSize));
+            if (chunk.isEmpty()) {
+                prettyPrintRecords(chunk, out);
+                if (stats != null) stats.renderNanos += System.nanoTime() - renderStart;
+                return 0;
+            }
+            CardLayout layout = CardLayout.fromSample(chunk, plan.getLabelWidth(), getTerminalWidth());
+            printCards(chunk, layout, out);
+
+            for (long start = chunk.size(); start < rows; start += options.fetchSize) {
+                printCards(store.toRecords(start, Math.min(rows, start + options.fetchSize)), layout, out);
+            }
+            if (stats != null) stats.renderNanos += System.nanoTime() - renderStart;
+            return rows;
+        }
+        catch (IOException e) {
+            throw new SQLException("Couldn't spill rows to disk: " + e.getMessage(), e);
+        }
+    }
+
+    private static void printStatementHeader(int number, int total, String sql, TerminalWriter out) {
+        // show the first line of actual sql so the result can be matched to the script
+        String preview = sql.lines()
+            .map(String::trim)
+            .filter(line -> !line.isEmpty() && !line.startsWith("--"))
+            .findFirst()
+            .orElse("");
+        if (preview.length() > 100) preview = preview.substring(0, 100) + "...";
+
+        out.newLine();
+        out.println(
+            AnsiControl.color(137, 49, 140) + "STATEMENT " + number + " OF " + total + 
+            AnsiControl.color(120, 120, 120) + "   " + preview + AnsiControl.RESET
+        );
+    }
+
+    private static void printStatementFooter(String summary, long startNanos, TerminalWriter out) {
+        long millis = (System.nanoTime() - startNanos) / 1_000_000;
+        out.println(AnsiControl.color(120, 120, 120) + "(" + summary + ", " + millis + " ms)" + AnsiControl.RESET);
+    }
+
+    /**
+     * Splits a script on top level semicolons. Quoted strings, quoted identifiers, dollar quoted 
+     * bodies and comments are skipped over, and statements that are only whitespace or comments 
+     * are dropped.
+     */
+    public static List<String> splitStatements(String sql) {
+        List<String> statements = new ArrayList<>();
+        int length = sql.length();
+        int start = 0;
+        boolean hasCode = false;
+
+        int i = 0;
+        while (i < length) {
+            char c = sql.charAt(i);
+            char next = i + 1 < length ? sql.charAt(i + 1) : 0;
+
+            // line comments
+            if (c == '-' && next == '-') {
+                int end = sql.indexOf('\n', i);
+                i = end == -1 ? length : end + 1;
+            }
+            // block comments, which postgres lets you nest
+            else if (c == '/' && next == '*') {
+                int depth = 0;
+                do {
+                    if (sql.startsWith("/*", i)) { depth++; i += 2; }
+                    else if (sql.startsWith("*/", i)) { depth--; i += 2; }
+                    else i++;
+                } while (depth > 0 && i < length);
+            }
+            // string literals, E'' strings allow backslash escapes
+            else if (c == '\'') {
+                boolean backslashEscapes = i > 0 && 
+                    (sql.charAt(i - 1) == 'E' || sql.charAt(i - 1) == 'e') && 
+                    (i < 2 || !isIdentifierChar(sql.charAt(i - 2)));
+                i = skipQuoted(sql, i, '\'', backslashEscapes);
+                hasCode = true;
+            }
+            // quoted identifiers
+            else if (c == '"') {
+                i = skipQuoted(sql, i, '"', false);
+                hasCode = true;
+            }
+            // dollar quoted bodies like $$ ... $$ or $body$ ... $body$
+            else if (c == '$' && (i == 0 || !isIdentifierChar(sql.charAt(i - 1))) && dollarTagEnd(sql, i) != -1) {
+                String tag = sql.substring(i, dollarTagEnd(sql, i) + 1);
+                int end = sql.indexOf(tag, i + tag.length());
+                i = end == -1 ? length : end + tag.length();
+                hasCode = true;
+            }
+            else if (c == ';') {
+                if (hasCode) statements.add(sql.substring(start, i).trim());
+                start = i + 1;
+                hasCode = false;
+                i++;
+            }
+            else {
+                if (!Character.isWhitespace(c)) hasCode = true;
+                i++;
+            }
+        }
+        if (hasCode) statements.add(sql.substring(start).trim());
+
+        return statements;
+    }
+
+    private static int skipQuoted(String sql, int start, char quote, boolean backslashEscapes) {
+        int i = start + 1;
+        while (i < sql.length()) {
+            char c = sql.charAt(i);
+            if (backslashEscapes && c == '\\') {
+                i += 2;
+            }
+            else if (c == quote) {
+                // doubled quotes are an escaped quote
+                if (i + 1 < sql.length() && sql.charAt(i + 1) == quote) i += 2;
+                else return i + 1;
+            }
+            else {
+                i++;
+            }
+        }
+        return sql.length();
+    }
+
+    /**
+     * Returns the index of the closing '$' of a dollar quote tag starting at 'start', or -1 if
+     * there isn't a valid tag there (such as a $1 parameter)
+     */
+    private static int dollarTagEnd(String sql, int start) {
+        int i = start + 1;
+        while (i < sql.length()) {
+            char c = sql.charAt(i);
+            if (c == '$') return i;
+            boolean valid = i == start + 1 ? 
+                Character.isLetter(c) || c == '_' : 
+                Character.isLetterOrDigit(c) || c == '_';
+            if (!valid) return -1;
+            i++;
+        }
+        return -1;
+    }
+
+    private static boolean isIdentifierChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+    }
+
+    /**
+     * Reads up to 'limit' rows from the result set, or every remaining row if 'limit' is 0 or less
+     */
+    static List<List<Record>> readRecords(ResultSet resultSet, DecodePlan plan, int limit, Stats stats) throws SQLException {
+        List<List<Record>> allRecords = new ArrayList<>();
+        long fetchStart = stats != null ? System.nanoTime() : 0;
+        while ((limit <= 0 || allRecords.size() < limit) && resultSet.next()) {
+
+            // timed per row rather than per cell to keep the clock calls cheap
+            long decodeStart = 0;
+            if (stats != null) {
+                decodeStart = System.nanoTime();
+                stats.fetchNanos += decodeStart - fetchStart;
+                if (stats.firstRowNanos == -1) stats.firstRowNanos = decodeStart - stats.startNanos;
+            }
+
+            List<Record> records = new ArrayList<>(plan.columnCount);
+            for (int i = 0; i < plan.columnCount; i++) {
+                String colValue = plan.getDisplayValue(resultSet, i);
+                String columnValue = colValue == null ? "null" : colValue;
+                if (stats != null) stats.bytes += columnValue.length();
+
+                records.add(
+                    new Record(
+                        plan.types[i],
+                        plan.columnNames[i],
+                        columnValue
+                    )
+                );
+
+            }
+            allRecords.add(
+                records
+            );
+
+            if (stats != null) {
+                fetchStart = System.nanoTime();
+                stats.decodeNanos += fetchStart - decodeStart;
+                stats.rows++;
+            }
+        }
+        if (stats != null) stats.fetchNanos += System.nanoTime() - fetchStart;
+        return allRecords;
+    }
+
+    private static void prettyPrintRecords(List<List<Record>> allRecords) throws SQLException {
+        prettyPrintRecords(allRecords, TERMINAL);
+    }
+
+    static void prettyPrintRecords(List<List<Record>> allRecords, TerminalWriter out) throws SQLException {
+
+        // pretty print out records
+        if (!allRecords.isEmpty()) {
+            // every record is already here, so none of them need cutting short
+            CardLayout layout = CardLayout.fromAll(allRecords, -1, getTerminalWidth());
+            printCards(allRecords, layout, out);
+        }
+        else {
+            out.newLine();
+            out.println("NO RESULTS");
+            out.newLine();
+            out.flush();
+        }
+    }
+
+    /**
+     * How wide each card is and how many fit across the terminal. It's worked out from the 
+     * column names and a bounded sample of leading rows, so printing can start before the rest 
+     * of the rows have been read. Later values too long for their card are cut short. When 
+     * every row is already in memory the layout is worked out from all of them instead.
+     */
+    public static class CardLayout {
+
+        public static final int SAMPLE_SIZE = 200;
+
+        public int labelWidth;
+        public int cardWidth;
+        public int cardsPerLine;
+
+        /**
+         * @param labelWidth width of the longest column name, or -1 to take it from the sample
+         */
+        public static CardLayout fromSample(List<List<Record>> cards, int labelWidth, int terminalWidth) {
+            return fromLeading(cards, Math.min(cards.size(), SAMPLE_SIZE), labelWidth, terminalWidth);
+        }
+
+        /**
+         * @param labelWidth width of the longest column name, or -1 to take it from the cards
+         */
+        public static CardLayout fromAll(List<List<Record>> cards, int labelWidth, int terminalWidth) {
+            return fromLeading(cards, cards.size(), labelWidth, terminalWidth);
+        }
+
+        private static CardLayout fromLeading(List<List<Record>> cards, int sampleSize, int labelWidth, int terminalWidth) {
+            if (labelWidth < 0) {
+                labelWidth = 0;
+                for (int i = 0; i < sampleSize; i++) {
+                    for (Record record : cards.get(i)) {
+                        labelWidth = Math.max(labelWidth, record.columnName.length());
+                    }
+                }
+            }
+
+            int valueWidth = 0;
+            for (int i = 0; i < sampleSize; i++) {
+                for (Record record : cards.get(i)) {
+                    valueWidth = Math.max(valueWidth, record.columnValue.length());
+                }
+            }
+
+            CardLayout layout = new CardLayout();
+            layout.labelWidth = labelWidth;
+            int biggestCard = labelWidth + EXTRA_SPACE_BEFORE_VALUE + valueWidth + 1;
+            layout.cardsPerLine = Math.max(1, terminalWidth / biggestCard);
+            layout.cardWidth = terminalWidth / layout.cardsPerLine;
+            return layout;
+        }
+
+        /**
+         * Room left for a value, or -1 if values never need cutting short because cards 
+         * are printed one per line
+         */
+        public int getMaxValueWidth() {
+            if (cardsPerLine == 1) return -1;
+            return Math.max(1, cardWidth - labelWidth - EXTRA_SPACE_BEFORE_VALUE - 1);
+        }
+    }
+
+    /**
+     * Prints the cards left to right, top to bottom, in one pass using a fixed layout
+     */
+    static void printCards(List<List<Record>> cards, CardLayout layout, TerminalWriter out) {
+        int maxValueWidth = layout.getMaxValueWidth();
+
+        for (int lineStart = 0; lineStart < cards.size(); lineStart += layout.cardsPerLine) {
+            int lineEnd = Math.min(cards.size(), lineStart + layout.cardsPerLine);
+
+            int tallestCard = 0;
+            for (int x = lineStart; x < lineEnd; x++) {
+                tallestCard = Math.max(tallestCard, cards.get(x).size());
+            }
+
+            out.newLine();
+            for (int tableRow = 0; tableRow < tallestCard; tableRow++) {
+                for (int x = lineStart; x < lineEnd; x++) {
+                    List<Record> records = cards.get(x);
+                    boolean lastOnLine = x == lineEnd - 1;
+
+                    if (tableRow < records.size()) {
+                        Record record = records.get(tableRow);
+                        String value = record.columnValue;
+                        if (maxValueWidth != -1 && value.length() > maxValueWidth) {
+                            value = value.substring(0, maxValueWidth - 1) + "\u2026";
+                        }
+
+                        // write out the colored name and value
+                        if (record.columnNameColorOverride != null) out.write(record.columnNameColorOverride);
+                        else out.write(TerminalWriter.RESET);
+                        writeFitted(out, record.columnName, layout.labelWidth);
+                        out.pad(EXTRA_SPACE_BEFORE_VALUE);
+                        if (record.columnValueColorOverride != null) out.write(record.columnValueColorOverride);
+                        else out.write(TerminalWriter.getColumnColorBytes(record.type, record.columnValue));
+                        out.write(value);
+                        out.write(TerminalWriter.RESET);
+
+                        // determine whitespace
+                        int neededWhitespace = layout.cardWidth - layout.labelWidth - EXTRA_SPACE_BEFORE_VALUE - value.length();
+                        if (neededWhitespace > 0 && !lastOnLine) out.pad(neededWhitespace);
+                    }
+                    else if (!lastOnLine) {
+                        out.pad(layout.cardWidth);
+                    }
+                }
+                out.newLine();
+            }
+            out.newLine();
+
+            // one write to the terminal per line of cards
+            out.flush();
+        }
+    }
+
+    private static void writeFitted(TerminalWriter out, String str, int length) {
+        if (str.length() > length) {
+            out.write(str.substring(0, length));
+        }
+        else {
+            out.write(str);
+            out.pad(length - str.length());
+        }
+    }
+
+    public static void printSchemas(String schemaPattern, String tablePattern, boolean refresh, RunOptions options) {
+
+        Stats stats = options.stats ? new Stats("--tables") : null;
+        long start = System.nanoTime();
+        try (Connection connection = connect(options.url, options.username, options.password)) {
+            if (stats != null) stats.connectNanos = System.nanoTime() - start;
+
+            // reuse the catalog from the last run if nothing in it has changed on the server
+            start = System.nanoTime();
+            Path cacheFile = CatalogCache.getCacheFile(options.url, schemaPattern, tablePattern);
+            String fingerprint = CatalogCache.getFingerprint(connection, schemaPattern, tablePattern);
+            if (stats != null) stats.executeNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            Catalog catalog = refresh ? null : CatalogCache.read(cacheFile, fingerprint);
+            if (catalog == null) {
+                catalog = loadCatalog(connection, schemaPattern, tablePattern);
+                CatalogCache.write(cacheFile, fingerprint, catalog);
+            }
+            else if (stats != null) {
+                stats.label = "--tables (cached)";
+            }
+            if (stats != null) {
+                stats.fetchNanos = System.nanoTime() - start;
+                stats.rows = catalog.columns.size();
+            }
+
+            start = System.nanoTime();
+            printCatalog(catalog);
+            if (stats != null) {
+                stats.renderNanos = System.nanoTime() - start;
+                stats.print(TERMINAL, options.statsJson);
+                TERMINAL.flush();
+            }
+
+        } catch (SQLException e) {
+            System.err.println("Error: " + e.getMessage());
+        }
+        catch(ArgParser.HelpException e) {}
+
+    }
+
+    /**
+     * Loads every schema, table and column in one pass over pg_catalog instead of a query per 
+     * schema and per table. Patterns use '*' and '?' as wildcards and are applied in the query.
+     */
+    public static Catalog loadCatalog(Connection connection, String schemaPattern, String tablePattern) throws SQLException {
+        Catalog catalog = new Catalog();
+        String schemaLike = toLikePattern(schemaPattern);
+        String tableLike = toLikePattern(tablePattern);
+
+        String sql = """
+            SELECT n.nspname
+            FROM pg_catalog.pg_namespace n
+            WHERE n.nspname NOT LIKE 'pg\\_%'
+                AND n.nspname <> 'information_schema'
+                AND n.nspname LIKE ?
+            ORDER BY n.nspname;
+        """;
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setString(1, schemaLike);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    catalog.schemas.add(resultSet.getString(1));
+                }
+            }
+        }
+
+        sql = """
+            SELECT
+                n.nspname,
+                c.relname,
+                a.attname,
+                t.typname,
+                CASE
+                    WHEN t.typname IN ('varchar', 'bpchar') AND a.atttypmod > 4 THEN a.atttypmod - 4
+                    WHEN t.typname IN ('bit', 'varbit') AND a.atttypmod > 0 THEN a.atttypmod
+                END,
+                NOT a.attnotnull,
+                pg_catalog.pg_get_expr(d.adbin, d.adrelid)
+            FROM pg_catalog.pg_class c
+            JOIN pg_catalog.pg_namespace n ON n.oid = c.relnamespace
+            LEFT JOIN pg_catalog.pg_attribute a ON a.attrelid = c.oid AND a.attnum > 0 AND NOT a.attisdropped
+            LEFT JOIN pg_catalog.pg_type t ON t.oid = a.atttypid
+            LEFT JOIN pg_catalog.pg_attrdef d ON d.adrelid = c.oid AND d.adnum = a.attnum
+            WHERE c.relkind IN ('r', 'p', 'v', 'm', 'f')
+                AND n.nspname NOT LIKE 'pg\\_%'
+                AND n.nspname <> 'information_schema'
+                AND n.nspname LIKE ?
+                AND c.relname LIKE ?
+            ORDER BY n.nspname, c.relname, a.attnum;
+        """;
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setString(1, schemaLike);
+            statement.setString(2, tableLike);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    CatalogColumn column = new CatalogColumn();
+                    column.schema = resultSet.getString(1);
+                    column.table = resultSet.getString(2);
+                    column.name = resultSet.getString(3);
+                    column.type = resultSet.getString(4);
+                    column.maxLength = resultSet.getInt(5);
+                    column.nullable = resultSet.getBoolean(6);
+                    column.defaultValue = resultSet.getString(7);
+                    catalog.columns.add(column);
+                }
+            }
+        }
+
+        return catalog;
+    }
+
+    private static String toLikePattern(String pattern) {
+        if (pattern == null || pattern.isEmpty()) return "%";
+
+        return pattern
+            .replace("\\", "\\\\")
+            .replace("%", "\\%")
+            .replace("_", "\\_")
+            .replace('*', '%')
+            .replace('?', '_');
+    }
+
+    /**
+     * Prints out the table definitions of each schema in the catalog
+     */
+    private static void printCatalog(Catalog catalog) throws SQLException {
+
+        // group the columns by schema then table, keeping the order from the query
+        Map<String, Map<String, List<CatalogColumn>>> tablesBySchema = new LinkedHashMap<>();
+        for (String schema : catalog.schemas) {
+            tablesBySchema.put(schema, new LinkedHashMap<>());
+        }
+        for (CatalogColumn column : catalog.columns) {
+            tablesBySchema
+                .computeIfAbsent(column.schema, key -> new LinkedHashMap<>())
+                .computeIfAbsent(column.table, key -> new ArrayList<>())
+                .add(column);
+        }
+
+        if (tablesBySchema.isEmpty()) {
+            System.out.println();
+            System.out.println("NO RESULTS");
+            System.out.println();
+            return;
+        }
+
+        for (Entry<String, Map<String, List<CatalogColumn>>> schemaEntry : tablesBySchema.entrySet()) {
+            String schema = schemaEntry.getKey();
+            System.out.println();
+            System.out.println();
+            System.out.println(AnsiControl.color(137, 49, 140) + "SCHEMA " + schema + AnsiControl.RESET);
+
+            // print out table definitions
+            List<List<Record>> allRecords = new ArrayList<>();
+            for (Entry<String, List<CatalogColumn>> tableEntry : schemaEntry.getValue().entrySet()) {
+
+                List<Record> rows = new ArrayList<>();
+                Record tableTitle = new Record(
+                    PostgresType.text,
+                    "TABLE " + schema + "." + tableEntry.getKey(),
+                    ""
+                );
+                tableTitle.columnNameColorOverride = AnsiControl.color(51, 56, 189);
+                rows.add(tableTitle);
+
+                for (CatalogColumn column : tableEntry.getValue()) {
+                    // tables without any columns still come back as one row
+                    if (column.name == null) continue;
+
+                    String columnValue = column.type;
+
+                    // set max length for varchars
+                    if (column.maxLength > 0) {
+                        columnValue += "(" + column.maxLength + ")";
+                    }
+
+                    // set nullable
+                    if (column.nullable) {
+                        columnValue += " NULL";
+                    }
+                    else {
+                        columnValue += " NOT NULL";
+                    }
+
+                    // set default value
+                    if (column.defaultValue != null) {
+                        columnValue += " DEFAULT " + column.defaultValue;
+                    }
+
+                    // add commas
+                    columnValue += ",";
+
+                    rows.add(
+                        new Record(
+                            TypeRegistry.resolveBuiltin(column.type).type,
+                            column.name,
+                            columnValue
+                        )
+                    );
+                }
+
+                allRecords.add(rows);
+
+                System.out.println();
+            }
+
+            prettyPrintRecords(allRecords);
+        }
+    }
+
+    /**
+     * Snapshot of the schemas, tables and columns in a database
+     */
+    public static class Catalog {
+        public List<String> schemas = new ArrayList<>();
+
+        /** ordered by schema, table then column position */
+        public List<CatalogColumn> columns = new ArrayList<>();
+    }
+
+    /**
+     * Keeps the last catalog loaded for each database in a file under ~/.dbdo/catalog. A cached 
+     * catalog is only used while the server's catalog fingerprint still matches the one it was 
+     * saved with.
+     */
+    public static class CatalogCache {
+
+        private static final int VERSION = 1;
+        private static final Path CACHE_DIR = Path.of(System.getProperty("user.home"), ".dbdo", "catalog");
+
+        public static Path getCacheFile(String url, String schemaPattern, String tablePattern) {
+            String key = url + "\n" + schemaPattern + "\n" + tablePattern;
+            return CACHE_DIR.resolve(sha256(key) + ".catalog");
+        }
+
+        /**
+         * Cheap summary of the catalog rows loadCatalog would read. Any DDL replaces rows in these 
+         * tables, which changes their count or transaction ids, while vacuum and analyze update 
+         * pg_class in place and leave the fingerprint alone. Only the schemas and tables matching 
+         * the patterns are summed, so temp tables and other sessions' work elsewhere don't count.
+         */
+        public static String getFingerprint(Connection connection, String schemaPattern, String tablePattern) throws SQLException {
+            String sql = """
+                WITH namespaces AS (
+                    SELECT n.oid, n.xmin
+                    FROM pg_catalog.pg_namespace n
+                    WHERE n.nspname NOT LIKE 'pg\\_%'
+                        AND n.nspname <> 'information_schema'
+                        AND n.nspname LIKE ?
+                ),
+                relations AS (
+                    SELECT c.oid, c.xmin
+                    FROM pg_catalog.pg_class c
+                    WHERE c.relnamespace IN (SELECT oid FROM namespaces)
+                        AND c.relkind IN ('r', 'p', 'v', 'm', 'f')
+                        AND c.relpersistence <> 't'
+                        AND c.relname LIKE ?
+                ),
+                attributes AS (
+                    SELECT a.atttypid, a.xmin
+                    FROM pg_catalog.pg_attribute a
+                    WHERE a.attrelid IN (SELECT oid FROM relations) AND a.attnum > 0
+                )
+                SELECT
+                    (SELECT count(*) || '.' || coalesce(sum(xmin::text::bigint), 0) FROM namespaces) || ':' ||
+                    (SELECT count(*) || '.' || coalesce(sum(xmin::text::bigint), 0) FROM relations) || ':' ||
+                    (SELECT count(*) || '.' || coalesce(sum(xmin::text::bigint), 0) FROM attributes) || ':' ||
+                    (SELECT count(*) || '.' || coalesce(sum(d.xmin::text::bigint), 0) FROM pg_catalog.pg_attrdef d WHERE d.adrelid IN (SELECT oid FROM relations)) || ':' ||
+                    (SELECT count(*) || '.' || coalesce(sum(t.xmin::text::bigint), 0) FROM pg_catalog.pg_type t WHERE t.oid IN (SELECT atttypid FROM attributes));
+            """;
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                statement.setString(1, toLikePattern(schemaPattern));
+                statement.setString(2, toLikePattern(tablePattern));
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    resultSet.next();
+                    return resultSet.getString(1);
+                }
+            }
+        }
+
+        /**
+         * Returns the cached catalog, or null if there isn't one or it's out of date
+         */
+        public static Catalog read(Path file, String fingerprint) {
+            if (!Files.exists(file)) return null;
+
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                if (in.readInt() != VERSION) return null;
+                if (!fingerprint.equals(readString(in))) return null;
+
+                Catalog catalog = new Catalog();
+                int schemaCount = in.readInt();
+                for (int i = 0; i < schemaCount; i++) {
+                    catalog.schemas.add(readString(in));
+                }
+                int columnCount = in.readInt();
+                for (int i = 0; i < columnCount; i++) {
+                    CatalogColumn column = new CatalogColumn();
+                    column.schema = readString(in);
+                    column.table = readString(in);
+                    column.name = readString(in);
+                    column.type = readString(in);
+                    column.maxLength = in.readInt();
+                    column.nullable = in.readBoolean();
+                    column.defaultValue = readString(in);
+                    catalog.columns.add(column);
+                }
+                return catalog;
+            }
+            catch (IOException e) {
+                // a broken cache file just means loading from the database again
+                return null;
+            }
+        }
+
+        public static void write(Path file, String fingerprint, Catalog catalog) {
+            try {
+                Files.createDirectories(file.getParent());
+                Path temp = Files.createTempFile(file.getParent(), "catalog", ".tmp");
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                    out.writeInt(VERSION);
+                    writeString(out, fingerprint);
+                    out.writeInt(catalog.schemas.size());
+                    for (String schema : catalog.schemas) {
+                        writeString(out, schema);
+                    }
+                    out.writeInt(catalog.columns.size());
+                    for (CatalogColumn column : catalog.columns) {
+                        writeString(out, column.schema);
+                        writeString(out, column.table);
+                        writeString(out, column.name);
+                        writeString(out, column.type);
+                        out.writeInt(column.maxLength);
+                        out.writeBoolean(column.nullable);
+                        writeString(out, column.defaultValue);
+                    }
+                }
+
+                // swap it in whole so a concurrent run never reads half a file
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (IOException e) {
+                System.err.println("Couldn't cache the catalog: " + e.getMessage());
+            }
+        }
+
+        private static void writeString(DataOutputStream out, String str) throws IOException {
+            if (str == null) {
+                out.writeInt(-1);
+                return;
+            }
+            byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        private static String readString(DataInputStream in) throws IOException {
+            int length = in.readInt();
+            if (length == -1) return null;
+
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Printed output of read only scripts kept under ~/.dbdo/results, so running the same script 
+     * against the same database again can replay it instead of re-running the queries. Entries 
+     * remember the tables their plans read along with those tables' change counters, and are only 
+     * replayed while the counters match (or while younger than --cache-ttl). Output is stored 
+     * deflated, and the least recently replayed entries are removed once over --cache-size.
+     */
+    public static class ResultCache {
+
+        private static final int VERSION = 1;
+        private static final Path CACHE_DIR = Path.of(System.getProperty("user.home"), ".dbdo", "results");
+
+        private static final Pattern RELATION = Pattern.compile(
+            "\"Relation Name\": \"((?:[^\"\\\\]|\\\\.)*)\",\\s*\"Schema\": \"((?:[^\"\\\\]|\\\\.)*)\""
+        );
+
+        private static final DateTimeFormatter CACHED_AT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+        // the timing printStatementFooter puts at the end of each statement's summary
+        private static final Pattern FOOTER_TIMING = Pattern.compile(
+            "(?m)^(" + Pattern.quote(AnsiControl.color(120, 120, 120)) + "\\(.*), \\d+ ms\\)(" + Pattern.quote(AnsiControl.RESET.toString()) + ")$"
+        );
+
+        public Path file;
+        public List<String> statements;
+        public RunOptions options;
+
+        // what the tables looked like before the run, set by snapshot
+        private List<String> tables = List.of();
+        private String signature;
+        private SQLException snapshotError;
+
+        /**
+         * Returns the cache entry for the script, or null if the script can't be cached because 
+         * it might write or isn't printed as cards
+         */
+        public static ResultCache of(String sql, RunOptions options) {
+            if (options.exportFormat != null || options.page || options.stats || options.parameterFile != null) return null;
+
+            List<String> statements = splitStatements(sql);
+            if (statements.isEmpty()) return null;
+            StringBuilder key = new StringBuilder();
+            for (String statement : statements) {
+                if (!isReadOnly(statement)) return null;
+                key.append(normalize(statement)).append(";\n");
+            }
+
+            // the output depends on how wide it was laid out and how much of each value was kept
+            key.append(options.url).append('\n')
+                .append(options.username).append('\n')
+                .append(getTerminalWidth()).append('\n')
+                .append(options.maxValue).append('\n')
+                .append(options.parameters);
+
+            ResultCache cache = new ResultCache();
+            cache.file = CACHE_DIR.resolve(sha256(key.toString()) + ".result");
+            cache.statements = statements;
+            cache.options = options;
+            return cache;
+        }
+
+        /**
+         * Drops comments and collapses whitespace outside of quotes, so reformatting a query 
+         * doesn't miss the cache
+         */
+        public static String normalize(String sql) {
+            StringBuilder normalized = new StringBuilder(sql.length());
+            int length = sql.length();
+            boolean pendingSpace = false;
+
+            int i = 0;
+            while (i < length) {
+                char c = sql.charAt(i);
+                char next = i + 1 < length ? sql.charAt(i + 1) : 0;
+                int end;
+
+                if (c == '-' && next == '-') {
+                    end = sql.indexOf('\n', i);
+                    i = end == -1 ? length : end + 1;
+                    pendingSpace = true;
+                    continue;
+                }
+                else if (c == '/' && next == '*') {
+                    int depth = 0;
+                    do {
+                        if (sql.startsWith("/*", i)) { depth++; i += 2; }
+                        else if (sql.startsWith("*/", i)) { depth--; i += 2; }
+                        else i++;
+                    } while (depth > 0 && i < length);
+                    pendingSpace = true;
+                    continue;
+                }
+                else if (Character.isWhitespace(c)) {
+                    pendingSpace = true;
+                    i++;
+                    continue;
+                }
+
+                if (c == '\'') {
+                    boolean backslashEscapes = i > 0 && 
+                        (sql.charAt(i - 1) == 'E' || sql.charAt(i - 1) == 'e') && 
+                        (i < 2 || !isIdentifierChar(sql.charAt(i - 2)));
+                    end = skipQuoted(sql, i, '\'', backslashEscapes);
+                }
+                else if (c == '"') {
+                    end = skipQuoted(sql, i, '"', false);
+                }
+                else if (c == '$' && (i == 0 || !isIdentifierChar(sql.charAt(i - 1))) && dollarTagEnd(sql, i) != -1) {
+                    String tag = sql.substring(i, dollarTagEnd(sql, i) + 1);
+                    int close = sql.indexOf(tag, i + tag.length());
+                    end = close == -1 ? length : close + tag.length();
+                }
+                else {
+                    end = i + 1;
+                }
+
+                if (pendingSpace && normalized.length() > 0) normalized.append(' ');
+                pendingSpace = false;
+                normalized.append(sql, i, end);
+                i = end;
+            }
+            return normalized.toString();
+        }
+
+        /**
+         * Prints the cached output if there's a usable entry, returning whether it did. With a 
+         * null connection only the --cache-ttl is checked.
+         */
+        public boolean replay(Connection connection, TerminalWriter out) throws SQLException {
+            if (!Files.exists(file)) return false;
+
+            byte[] output;
+            long createdMillis;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                if (in.readInt() != VERSION) return false;
+                createdMillis = in.readLong();
+                List<String> tables = new ArrayList<>();
+                int tableCount = in.readInt();
+                for (int i = 0; i < tableCount; i++) {
+                    tables.add(CatalogCache.readString(in));
+                }
+                String signature = CatalogCache.readString(in);
+
+                long ageMillis = System.currentTimeMillis() - createdMillis;
+                boolean fresh = options.cacheTtlSeconds > 0 ? 
+                    ageMillis <= options.cacheTtlSeconds * 1000 : 
+                    connection != null && signature != null && signature.equals(getSignature(connection, tables));
+                if (!fresh) return false;
+
+                output = new byte[in.readInt()];
+                try (InflaterInputStream inflater = new InflaterInputStream(in)) {
+                    inflater.readNBytes(output, 0, output.length);
+                }
+
+                // replaying counts as a use for the lru
+                Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            }
+            catch (IOException e) {
+                // a broken cache file just means running the script again
+                return false;
+            }
+
+            out.write(output);
+            out.println(
+                AnsiControl.color(120, 120, 120) + "(cached result from " + 
+                CACHED_AT.format(Instant.ofEpochMilli(createdMillis).atZone(ZoneId.systemDefault())) + 
+                ", --refresh to rerun)" + AnsiControl.RESET
+            );
+            out.flush();
+            return true;
+        }
+
+        /**
+         * Wraps the stream so everything written to it is also copied into 'captured', until the 
+         * copy grows bigger than the whole cache could hold
+         */
+        public OutputStream capture(OutputStream target, ByteArrayOutputStream captured) {
+            long limit = options.cacheSizeMb * 1024 * 1024;
+            return new OutputStream() {
+                boolean overflowed;
+
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[]{ (byte) b }, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] bytes, int offset, int length) throws IOException {
+                    target.write(bytes, offset, length);
+                    if (overflowed) return;
+
+                    if (captured.size() + length > limit) {
+                        overflowed = true;
+                        captured.reset();
+                    }
+                    else {
+                        captured.write(bytes, offset, length);
+                    }
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    target.flush();
+                }
+            };
+        }
+
+        /**
+         * Reads the signature of the tables the script uses before it runs. Read afterwards, a 
+         * write that landed during the run would count as seen when the output may have missed it.
+         * A failure is only reported by store, since the run itself will usually hit it too.
+         */
+        public void snapshot(Connection connection) {
+            if (options.cacheTtlSeconds > 0) return;
+
+            try {
+                tables = getTables(connection);
+                if (tables != null) signature = getSignature(connection, tables);
+            }
+            catch (SQLException e) {
+                snapshotError = e;
+            }
+        }
+
+        /**
+         * Saves the script's output along with what's needed to tell later whether it's still 
+         * good, then trims the cache back under its size limit. Without a ttl the output is only 
+         * kept if the tables still match the snapshot, so nothing changed them mid run.
+         */
+        public void store(Connection connection, ByteArrayOutputStream captured) {
+            if (captured.size() == 0) return;
+
+            try {
+                if (options.cacheTtlSeconds <= 0) {
+                    if (snapshotError != null) throw snapshotError;
+                    // what the script reads can't be tracked, or something wrote to it during the run
+                    if (signature == null || !signature.equals(getSignature(connection, tables))) return;
+                }
+
+                Files.createDirectories(CACHE_DIR);
+                Path temp = Files.createTempFile(CACHE_DIR, "result", ".tmp");
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                    out.writeInt(VERSION);
+                    out.writeLong(System.currentTimeMillis());
+                    out.writeInt(tables.size());
+                    for (String table : tables) {
+                        CatalogCache.writeString(out, table);
+                    }
+                    CatalogCache.writeString(out, signature);
+
+                    // a replay takes no time like the original run did, so its timings are left off
+                    String output = FOOTER_TIMING.matcher(captured.toString(StandardCharsets.UTF_8)).replaceAll("$1)$2");
+                    byte[] stored = output.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(stored.length);
+                    DeflaterOutputStream deflater = new DeflaterOutputStream(out);
+                    deflater.write(stored);
+                    deflater.finish();
+                }
+
+                // swap it in whole so a concurrent run never reads half a file
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                evict(options.cacheSizeMb * 1024 * 1024);
+            }
+            catch (IOException | SQLException e) {
+                System.err.println("Couldn't cache the results: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Tables the script's plans read from, found by explaining each statement. Returns null if 
+         * the plans call set returning functions or read foreign tables, since what those read 
+         * can't be seen.
+         */
+        private List<String> getTables(Connection connection) throws SQLException {
+            Set<String> tables = new TreeSet<>();
+            try (Statement statement = connection.createStatement()) {
+                for (String sql : statements) {
+                    // show reads settings, not tables
+                    if (!Exporter.isCopyable(sql)) return null;
+
+                    String plan;
+                    try (ResultSet resultSet = statement.executeQuery("EXPLAIN (VERBOSE, FORMAT JSON) " + sql)) {
+                        resultSet.next();
+                        plan = resultSet.getString(1);
+                    }
+                    if (plan.contains("\"Function Scan\"") || plan.contains("\"Foreign Scan\"")) return null;
+
+                    Matcher matcher = RELATION.matcher(plan);
+                    while (matcher.find()) {
+                        tables.add(
+                            Importer.quoteIdentifier(unescapeJson(matcher.group(2))) + "." + 
+                            Importer.quoteIdentifier(unescapeJson(matcher.group(1)))
+                        );
+                    }
+                }
+            }
+
+            // nothing would ever tell a query without tables (like 'SELECT now()') is out of date
+            return tables.isEmpty() ? null : new ArrayList<>(tables);
+        }
+
+        private static String unescapeJson(String str) {
+            return str.replace("\\\"", "\"").replace("\\\\", "\\");
+        }
+
+        /**
+         * Change counters and storage ids of the tables, which move on any insert, update, delete 
+         * or truncate. On a replica the counters aren't updated by replay, so the replay position 
+         * is included and any change to the database counts.
+         */
+        private static String getSignature(Connection connection, List<String> tables) throws SQLException {
+            String sql = """
+                SELECT
+                    count(c.oid) || '/' || count(*) || '|' ||
+                    coalesce(string_agg(
+                        c.oid || ':' || c.relfilenode || ':' ||
+                        coalesce(s.n_tup_ins, 0) || ':' || coalesce(s.n_tup_upd, 0) || ':' || coalesce(s.n_tup_del, 0),
+                        ',' ORDER BY c.oid
+                    ), '') || '|' ||
+                    CASE WHEN pg_catalog.pg_is_in_recovery() THEN pg_catalog.pg_last_wal_replay_lsn()::text ELSE '' END
+                FROM unnest(?::text[]) AS t(name)
+                LEFT JOIN pg_catalog.pg_class c ON c.oid = pg_catalog.to_regclass(t.name)
+                LEFT JOIN pg_catalog.pg_stat_all_tables s ON s.relid = c.oid
+            """;
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                statement.setArray(1, connection.createArrayOf("text", tables.toArray()));
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    resultSet.next();
+                    return resultSet.getString(1);
+                }
+            }
+        }
+
+        /**
+         * Removes the least recently used entries until the cache fits in 'maxBytes'
+         */
+        private static void evict(long maxBytes) throws IOException {
+            List<Path> entries;
+            try (var files = Files.list(CACHE_DIR)) {
+                entries = files.filter(path -> path.toString().endsWith(".result")).collect(Collectors.toList());
+            }
+
+            Map<Path, FileTime> lastUsed = new HashMap<>();
+            long total = 0;
+            for (Path entry : entries) {
+                lastUsed.put(entry, Files.getLastModifiedTime(entry));
+                total += Files.size(entry);
+            }
+            entries.sort((a, b) -> lastUsed.get(a).compareTo(lastUsed.get(b)));
+
+            for (Path entry : entries) {
+                if (total <= maxBytes) break;
+                total -= Files.size(entry);
+                Files.deleteIfExists(entry);
+            }
+        }
+    }
+
+    public static String sha256(String str) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(str.getBytes(StandardCharsets.UTF_8)));
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static class CatalogColumn {
+        public String schema;
+        public String table;
+        public String name;
+        public String type;
+        public int maxLength;
+        public boolean nullable;
+        public String defaultValue;
+    }
+
+    public static class Record {
+        public PostgresType type;
+        public String columnName;
+        public String columnValue;
+
+        public String columnNameColorOverride;
+        public String columnValueColorOverride;
+
+        public Record(DbDo.PostgresType type, String columnName, String columnValue) {
+            this.type = type;
+            this.columnName = columnName;
+            this.columnValue = columnValue;
+        }
+
+        
+    }
+
+    /**
+     * Settings from the command line that change how a script is run and printed
+     */
+    public static class RunOptions {
+        public String url;
+        public String username;
+        public String password;
+
+        public boolean stream;
+        public boolean page;
+        public int fetchSize = DEFAULT_FETCH_SIZE;
+        public int parallel = 1;
+
+        public ExportFormat exportFormat;
+        public Path exportFile;
+
+        public int batchSize = DEFAULT_BATCH_SIZE;
+
+        public int maxValue = DEFAULT_MAX_VALUE;
+
+        public boolean stats;
+        public boolean statsJson;
+
+        /** values for :name placeholders given as args */
+        public Map<String, String> parameters = new TreeMap<>();
+        /** file with a set of placeholder values per row */
+        public Path parameterFile;
+
+        public boolean cache;
+        /** how long cached results stay good without checking the tables, 0 to always check */
+        public long cacheTtlSeconds;
+        public long cacheSizeMb = DEFAULT_CACHE_SIZE_MB;
+
+        /** most heap a query's rows can use before the rest spill to a mapped file */
+        public long memoryMb = DEFAULT_MEMORY_MB;
+
+        /** second database to compare the script's results against */
+        public String diffUrl;
+        /** columns that match up rows between the two databases */
+        public List<String> diffKeys = List.of();
+
+        /** fetch only about a screen of rows from each query */
+        public boolean preview;
+        /** take preview rows from a table sample rather than the first rows */
+        public boolean previewSample;
+
+        public boolean explain;
+        /** whether --explain runs the statements to measure them, or only plans them */
+        public boolean explainAnalyze;
+    }
+
+    /**
+     * Where the time went for one statement (or one --tables run), split into the phases of 
+     * getting rows from the server onto the screen
+     */
+    public static class Stats {
+        public String label;
+        public long startNanos = System.nanoTime();
+
+        public long connectNanos;
+        public long executeNanos;
+        public long firstRowNanos = -1;
+        public long fetchNanos;
+        public long decodeNanos;
+        public long renderNanos;
+
+        public long rows;
+        /** characters decoded, close to the bytes sent for most data */
+        public long bytes;
+
+        public Stats(String label) {
+            this.label = label;
+        }
+
+        public long getTotalNanos() {
+            return connectNanos + executeNanos + fetchNanos + decodeNanos + renderNanos;
+        }
+
+        public long getRowsPerSecond() {
+            long total = getTotalNanos();
+            return total > 0 ? (long) (rows / (total / 1e9)) : 0;
+        }
+
+        /**
+         * Prints a compact footer, and a json line on stderr if asked for
+         */
+        public void print(TerminalWriter out, boolean json) {
+            StringBuilder footer = new StringBuilder("stats");
+            if (connectNanos > 0) footer.append("  connect ").append(millis(connectNanos));
+            if (executeNanos > 0) footer.append("  execute ").append(millis(executeNanos));
+            if (firstRowNanos >= 0) footer.append("  first row ").append(millis(firstRowNanos));
+            if (fetchNanos > 0) footer.append("  fetch ").append(millis(fetchNanos));
+            if (decodeNanos > 0) footer.append("  decode ").append(millis(decodeNanos));
+            if (renderNanos > 0) footer.append("  render ").append(millis(renderNanos));
+            if (rows > 0) {
+                footer.append("  |  ").append(rows).append(rows == 1 ? " row" : " rows");
+                if (bytes > 0) footer.append("  ~").append(ValueRewrite.formatSize(bytes));
+                footer.append("  ").append(getRowsPerSecond()).append(" rows/sec");
+            }
+            out.println(AnsiControl.color(120, 120, 120) + footer + AnsiControl.RESET);
+
+            if (json) System.err.println(toJson());
+        }
+
+        public String toJson() {
+            StringBuilder builder = new StringBuilder();
+            builder.append("{\"label\":").append(jsonString(label.lines().findFirst().orElse("").trim()))
+                .append(",\"connect_ms\":").append(connectNanos / 1e6)
+                .append(",\"execute_ms\":").append(executeNanos / 1e6)
+                .append(",\"first_row_ms\":").append(firstRowNanos >= 0 ? String.valueOf(firstRowNanos / 1e6) : "null")
+                .append(",\"fetch_ms\":").append(fetchNanos / 1e6)
+                .append(",\"decode_ms\":").append(decodeNanos / 1e6)
+                .append(",\"render_ms\":").append(renderNanos / 1e6)
+                .append(",\"total_ms\":").append(getTotalNanos() / 1e6)
+                .append(",\"rows\":").append(rows)
+                .append(",\"bytes\":").append(bytes)
+                .append(",\"rows_per_sec\":").append(getRowsPerSecond())
+                .append("}");
+            return builder.toString();
+        }
+
+        private static String millis(long nanos) {
+            return String.format("%.1f ms", nanos / 1e6);
+        }
+    }
+
+    private static String jsonString(String value) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TerminalWriter writer = new TerminalWriter(bytes, 256);
+        Exporter.writeJsonString(writer, value);
+        writer.flush();
+        return bytes.toString(StandardCharsets.UTF_8);
+    }
+
+    public enum ExportFormat {
+        csv,
+        tsv,
+        jsonl;
+
+        public static ExportFormat of(String name) {
+            try {
+                return valueOf(name.toLowerCase());
+            }
+            catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("--export must be csv, tsv or jsonl, not '" + name + "'");
+            }
+        }
+
+        public static ExportFormat fromFileName(String fileName) {
+            String name = fileName.toLowerCase();
+            if (name.endsWith(".tsv") || name.endsWith(".tab")) return tsv;
+            if (name.endsWith(".jsonl") || name.endsWith(".ndjson") || name.endsWith(".json")) return jsonl;
+            return csv;
+        }
+    }
+
+    /**
+     * Loads a csv, tsv or json lines file into a table with COPY ... FROM STDIN, reading the file 
+     * in chunks so it never has to fit in memory. Json lines are copied into a temp table and 
+     * spread into the target's columns on the server. If COPY is refused the rows are sent as 
+     * batched inserts instead.
+     */
+    public static class Importer {
+
+        private static final int CHUNK_SIZE = 1 << 16;
+
+        public static void importFile(Connection connection, Path file, String table, RunOptions options) throws SQLException, IOException {
+            ExportFormat format = ExportFormat.fromFileName(file.getFileName().toString());
+            Progress progress = new Progress();
+
+            connection.setAutoCommit(false);
+            try {
+                long rows = copyFile(connection, file, table, format, progress);
+                if (rows == -1) {
+                    System.err.println("COPY isn't available, falling back to batched inserts");
+                    rows = insertFile(connection, file, table, format, options.batchSize, progress);
+                }
+                connection.commit();
+                progress.finish(rows);
+            }
+            catch (SQLException | IOException e) {
+                connection.rollback();
+                throw e;
+            }
+        }
+
+        /**
+         * Streams the file through COPY, returning how many rows were loaded or -1 if the server 
+         * wouldn't start the COPY at all
+         */
+        private static long copyFile(Connection connection, Path file, String table, ExportFormat format, Progress progress) throws SQLException, IOException {
+            if (!connection.isWrapperFor(PGConnection.class)) return -1;
+            CopyManager copyManager = connection.unwrap(PGConnection.class).getCopyAPI();
+
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(file), CHUNK_SIZE)) {
+
+                String copySql;
+                String target = table;
+                if (format == ExportFormat.jsonl) {
+                    target = "dbdo_import";
+
+                    // row_to_json style lines never hold raw control characters, so these make csv 
+                    // mode pass each line through as is
+                    copySql = "COPY dbdo_import (doc) FROM STDIN WITH (FORMAT csv, QUOTE E'\\x01', DELIMITER E'\\x02')";
+                }
+                else {
+                    List<String> header = readHeader(in, delimiter(format));
+                    copySql = "COPY " + table + " (" + quoteIdentifiers(header) + ") FROM STDIN WITH (FORMAT csv" + 
+                        (format == ExportFormat.tsv ? ", DELIMITER E'\\t'" : "") + ")";
+                }
+
+                // temp tables and COPY can both be refused, fall back to inserts if either is
+                Savepoint savepoint = connection.setSavepoint();
+                CopyIn copyIn;
+                try {
+                    if (format == ExportFormat.jsonl) {
+                        try (Statement statement = connection.createStatement()) {
+                            // text so blank lines load as well, they're skipped when the documents are spread
+                            statement.execute("CREATE TEMP TABLE dbdo_import (doc text) ON COMMIT DROP");
+                        }
+                    }
+                    copyIn = copyManager.copyIn(copySql);
+                }
+                catch (SQLException e) {
+                    connection.rollback(savepoint);
+                    return -1;
+                }
+
+                try {
+                    byte[] chunk = new byte[CHUNK_SIZE];
+                    int read;
+                    while ((read = in.read(chunk)) != -1) {
+                        copyIn.writeToCopy(chunk, 0, read);
+                        progress.update(countLines(chunk, read));
+                    }
+                    long rows = copyIn.endCopy();
+                    if (format != ExportFormat.jsonl) return rows;
+                }
+                finally {
+                    if (copyIn.isActive()) copyIn.cancelCopy();
+                }
+
+                // spread the json documents into whichever target columns any of them have keys for
+                try (Statement statement = connection.createStatement()) {
+                    String documents = "(SELECT doc::jsonb AS doc FROM " + target + " WHERE doc ~ '\\S') dbdo_doc";
+                    Set<String> keys = new HashSet<>();
+                    try (ResultSet resultSet = statement.executeQuery("SELECT DISTINCT jsonb_object_keys(doc) FROM " + documents)) {
+                        while (resultSet.next()) keys.add(resultSet.getString(1));
+                    }
+                    return insertFromJson(connection, table, keys, documents);
+                }
+            }
+        }
+
+        private static long insertFromJson(Connection connection, String table, Set<String> keys, String source) throws SQLException {
+            List<String> columns = getTableColumns(connection, table).stream()
+                .filter(keys::contains)
+                .toList();
+            if (columns.isEmpty()) return 0;
+            String columnList = quoteIdentifiers(columns);
+            String sql = "INSERT INTO " + table + " (" + columnList + ") " + 
+                "SELECT " + columns.stream().map(column -> "r." + quoteIdentifier(column)).collect(Collectors.joining(", ")) + 
+                " FROM " + source + ", jsonb_populate_record(null::" + table + ", doc) r";
+            try (Statement statement = connection.createStatement()) {
+                return statement.executeUpdate(sql);
+            }
+        }
+
+        private static List<String> getTableColumns(Connection connection, String table) throws SQLException {
+            String sql = """
+                SELECT attname
+                FROM pg_catalog.pg_attribute
+                WHERE attrelid = ?::regclass AND attnum > 0 AND NOT attisdropped
+                ORDER BY attnum;
+            """;
+            List<String> columns = new ArrayList<>();
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                statement.setString(1, table);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) columns.add(resultSet.getString(1));
+                }
+            }
+            return columns;
+        }
+
+        /**
+         * Sends the file as batched inserts, for when COPY isn't allowed
+         */
+        private static long insertFile(Connection connection, Path file, String table, ExportFormat format, int batchSize, Progress progress) throws SQLException, IOException {
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+
+                if (format == ExportFormat.jsonl) {
+                    // a first pass for every key in the file, so the same columns are filled as 
+                    // when COPY spreads the documents
+                    Set<String> keys = new HashSet<>();
+                    try (BufferedReader keyReader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                        String line;
+                        while ((line = keyReader.readLine()) != null) {
+                            if (!line.isBlank()) keys.addAll(ParameterReader.parseJsonObject(line).keySet());
+                        }
+                    }
+
+                    // let the server spread each document into the table columns
+                    String line = reader.readLine();
+                    List<String> columns = getTableColumns(connection, table).stream()
+                        .filter(keys::contains)
+                        .toList();
+                    if (columns.isEmpty()) return 0;
+                    String sql = "INSERT INTO " + table + " (" + quoteIdentifiers(columns) + ") " + 
+                        "SELECT " + columns.stream().map(column -> "r." + quoteIdentifier(column)).collect(Collectors.joining(", ")) + 
+                        " FROM jsonb_populate_record(null::" + table + ", ?::jsonb) r";
+                    try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                        long rows = 0;
+                        for (; line != null; line = reader.readLine()) {
+                            if (line.isBlank()) continue;
+                            statement.setString(1, line);
+                            statement.addBatch();
+                            if (++rows % batchSize == 0) {
+                                statement.executeBatch();
+                                progress.update(batchSize);
+                            }
+                        }
+                        statement.executeBatch();
+                        return rows;
+                    }
+                }
+
+                CsvReader csv = new CsvReader(reader, delimiter(format));
+                List<String> header = csv.readRecord();
+                String placeholders = String.join(", ", Collections.nCopies(header.size(), "?"));
+                String sql = "INSERT INTO " + table + " (" + quoteIdentifiers(header) + ") VALUES (" + placeholders + ")";
+                try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                    long rows = 0;
+                    List<String> record;
+                    while ((record = csv.readRecord()) != null) {
+                        for (int i = 0; i < header.size(); i++) {
+                            // untyped so the server casts the text to each column's type like COPY does
+                            statement.setObject(i + 1, i < record.size() ? record.get(i) : null, Types.OTHER);
+                        }
+                        statement.addBatch();
+                        if (++rows % batchSize == 0) {
+                            statement.executeBatch();
+                            progress.update(batchSize);
+                        }
+                    }
+                    statement.executeBatch();
+                    return rows;
+                }
+            }
+        }
+
+        private static char delimiter(ExportFormat format) {
+            return format == ExportFormat.tsv ? '\t' : ',';
+        }
+
+        /**
+         * Reads the header record off the front of the file, leaving the rest for COPY. Quoted 
+         * names can hold line breaks, so it runs up to the first line break outside quotes. Quotes 
+         * and line breaks are single bytes in utf-8 that never show up inside other characters.
+         */
+        private static List<String> readHeader(InputStream in, char delimiter) throws IOException {
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            boolean quoted = false;
+            int b;
+            while ((b = in.read()) != -1 && (b != '\n' || quoted)) {
+                if (b == '"') quoted = !quoted;
+                record.write(b);
+            }
+            List<String> header = new CsvReader(new StringReader(record.toString(StandardCharsets.UTF_8)), delimiter).readRecord();
+            if (header == null) throw new IOException("The file is empty, expected a header row");
+            return header;
+        }
+
+        private static int countLines(byte[] bytes, int length) {
+            int lines = 0;
+            for (int i = 0; i < length; i++) {
+                if (bytes[i] == '\n') lines++;
+            }
+            return lines;
+        }
+
+        private static String quoteIdentifiers(List<String> identifiers) {
+            return identifiers.stream()
+                .map(Importer::quoteIdentifier)
+                .collect(Collectors.joining(", "));
+        }
+
+        private static String quoteIdentifier(String identifier) {
+            return "\"" + identifier.trim().replace("\"", "\"\"") + "\"";
+        }
+
+        /**
+         * Prints rows loaded and the rate on stderr, at most a few times a second
+         */
+        private static class Progress {
+            private long start = System.nanoTime();
+            private long lastPrint = 0;
+            private long rows = 0;
+
+            public void update(long newRows) {
+                rows += newRows;
+                long now = System.nanoTime();
+                if (now - lastPrint > 250_000_000L) {
+                    lastPrint = now;
+                    System.err.print("\r" + rows + " rows, " + rate(rows, now) + " rows/sec   ");
+                }
+            }
+
+            public void finish(long totalRows) {
+                long now = System.nanoTime();
+                long millis = (now - start) / 1_000_000;
+                System.err.println("\r" + totalRows + " rows imported in " + millis + " ms, " + rate(totalRows, now) + " rows/sec   ");
+            }
+
+            private long rate(long rows, long now) {
+                double seconds = (now - start) / 1e9;
+                return seconds > 0 ? (long) (rows / seconds) : rows;
+            }
+        }
+    }
+
+    /**
+     * Runs a script's queries against two databases at the same time and prints only the rows 
+     * that differ. With --key both sides are sorted by the key columns on the server and merged 
+     * as they stream in, so rows with the same key are matched up and their changed cells 
+     * highlighted. Without a key, each side's rows are hashed into partitions spilled to 
+     * temporary files, then the partitions are compared pair by pair, so only one partition 
+     * has to fit in memory at a time and rows can only come out as added or removed.
+     * Partitions that turn out too big for --memory are split again before they're compared.
+     */
+    public static class Differ {
+
+        private static final int MIN_PARTITIONS = 16;
+        private static final int MAX_PARTITIONS = 512;
+        private static final int MAX_SPLITS = 4;
+        private static final int QUEUED_CHUNKS = 4;
+
+        private static final String ADDED_COLOR = AnsiControl.color(75, 214, 84);
+        private static final String REMOVED_COLOR = AnsiControl.color(214, 75, 75);
+        private static final String CHANGED_COLOR = AnsiControl.color(214, 160, 75);
+
+        /** a row's full cell text, nulls included, and its key columns' text */
+        static class Row {
+            public String[] cells;
+            public String[] keys;
+        }
+
+        /** where partitions take their rows from, a side's cursor or a partition being split */
+        interface RowSource {
+            Row next() throws SQLException, IOException;
+        }
+
+        /**
+         * Diffs each plain query in the script between the connection and --diff. Anything else 
+         * is skipped rather than run twice.
+         */
+        public static void diffScript(Connection connection, List<String> statements, RunOptions options, TerminalWriter out) throws SQLException {
+            try (Connection other = connect(options.diffUrl, options.username, options.password)) {
+                for (int i = 0; i < statements.size(); i++) {
+                    if (statements.size() > 1) {
+                        printStatementHeader(i + 1, statements.size(), statements.get(i), out);
+                    }
+                    if (!Exporter.isCopyable(statements.get(i))) {
+                        out.println(AnsiControl.color(120, 120, 120) + "(skipped, only plain queries are diffed)" + AnsiControl.RESET);
+                        continue;
+                    }
+                    diffStatement(connection, other, statements.get(i), options, out);
+                    out.flush();
+                }
+            }
+        }
+
+        private static void diffStatement(Connection connection, Connection other, String sql, RunOptions options, TerminalWriter out) throws SQLException {
+            long start = System.nanoTime();
+            boolean keyed = !options.diffKeys.isEmpty();
+            String query = keyed ? sortedByKeys(sql, options.diffKeys) : sql;
+            int keyCount = options.diffKeys.size();
+            // partitions are read back as strings in hash maps, a few times their size on disk
+            long partitionBytes = options.memoryMb * 1024 * 1024 / 4;
+            int partitionCount = keyed ? 0 : partitionCount(connection, sql, partitionBytes);
+
+            ExecutorService executor = Executors.newFixedThreadPool(2, runnable -> {
+                Thread thread = new Thread(runnable, "db-do-diff");
+                thread.setDaemon(true);
+                return thread;
+            });
+            Side left = null;
+            Side right = null;
+            try {
+                // both queries run at the same time
+                Future<Side> leftFuture = executor.submit(() -> Side.open(connection, query, keyCount, options));
+                Future<Side> rightFuture = executor.submit(() -> Side.open(other, query, keyCount, options));
+                try {
+                    left = awaitResult(leftFuture);
+                }
+                finally {
+                    // wait for the other side either way so it gets closed
+                    try {
+                        right = awaitResult(rightFuture);
+                    }
+                    catch (SQLException e) {
+                        if (left != null) throw e;
+                    }
+                }
+
+                List<String> leftColumns = Arrays.asList(left.plan.columnNames).subList(0, left.columnCount);
+                List<String> rightColumns = Arrays.asList(right.plan.columnNames).subList(0, right.columnCount);
+                if (!leftColumns.equals(rightColumns)) {
+                    throw new SQLException("The two results have different columns: " + leftColumns + " and " + rightColumns);
+                }
+
+                DiffPrinter printer = new DiffPrinter(leftColumns, left.plan.types, options, out);
+                if (keyed) mergeSorted(left, right, executor, options, printer);
+                else compareHashed(left, right, executor, partitionCount, partitionBytes, printer);
+                printer.flush();
+
+                String summary = printer.added + " added, " + printer.removed + " removed, " + 
+                    (keyed ? printer.changed + " changed, " : "") + printer.same + " the same";
+                if (printer.added + printer.removed + printer.changed == 0) {
+                    out.newLine();
+                    out.println("NO DIFFERENCES");
+                    out.newLine();
+                }
+                printStatementFooter(summary, start, out);
+            }
+            finally {
+                executor.shutdownNow();
+                if (left != null) left.close();
+                if (right != null) right.close();
+            }
+        }
+
+        /**
+         * Wraps the query so it's ordered by the text of the key columns in the "C" collation, 
+         * which sorts by code point on utf-8 databases no matter how either server is set up, 
+         * and so compareKeys can follow the same order
+         */
+        static String sortedByKeys(String sql, List<String> keys) {
+            List<String> keyColumns = keys.stream()
+                .map(key -> "(dbdo_q.\"" + key.trim().replace("\"", "\"\"") + "\")::text COLLATE \"C\"")
+                .collect(Collectors.toList());
+            // the paren goes on its own line so a trailing -- comment can't swallow it
+            return "SELECT dbdo_q.*, " + String.join(", ", keyColumns) + 
+                " FROM (" + sql + "\n) AS dbdo_q ORDER BY " + String.join(", ", keyColumns);
+        }
+
+        private static void mergeSorted(Side left, Side right, ExecutorService executor, RunOptions options, DiffPrinter printer) throws SQLException {
+            RowStream leftRows = new RowStream(left, executor, options.fetchSize);
+            RowStream rightRows = new RowStream(right, executor, options.fetchSize);
+
+            Row before = leftRows.next();
+            Row after = rightRows.next();
+            while (before != null || after != null) {
+                int order = before == null ? 1 : after == null ? -1 : compareKeys(before.keys, after.keys);
+                if (order < 0) {
+                    printer.removed(before);
+                    before = leftRows.next();
+                }
+                else if (order > 0) {
+                    printer.added(after);
+                    after = rightRows.next();
+                }
+                else {
+                    if (Arrays.equals(before.cells, after.cells)) printer.same++;
+                    else printer.changed(before, after);
+                    before = leftRows.next();
+                    after = rightRows.next();
+                }
+            }
+        }
+
+        /**
+         * Orders keys the way the server sorted them, nulls last
+         */
+        static int compareKeys(String[] a, String[] b) {
+            for (int i = 0; i < a.length; i++) {
+                if (a[i] == null || b[i] == null) {
+                    if (a[i] != b[i]) return a[i] == null ? 1 : -1;
+                    continue;
+                }
+                int order = compareCodePoints(a[i], b[i]);
+                if (order != 0) return order;
+            }
+            return 0;
+        }
+
+        private static int compareCodePoints(String a, String b) {
+            int i = 0;
+            int j = 0;
+            while (i < a.length() && j < b.length()) {
+                int codePointA = a.codePointAt(i);
+                int codePointB = b.codePointAt(j);
+                if (codePointA != codePointB) return Integer.compare(codePointA, codePointB);
+                i += Character.charCount(codePointA);
+                j += Character.charCount(codePointB);
+            }
+            return Boolean.compare(i < a.length(), j < b.length());
+        }
+
+        /**
+         * Enough partitions for each to come in under 'partitionBytes' going by the planner's 
+         * estimate of the result's size. Estimates can be far off, partitions that still turn 
+         * out too big are split again when they're compared.
+         */
+        static int partitionCount(Connection connection, String sql, long partitionBytes) {
+            double estimatedBytes;
+            try (Statement statement = connection.createStatement(); ResultSet resultSet = statement.executeQuery("EXPLAIN (FORMAT JSON) " + sql)) {
+                resultSet.next();
+                Map<String, String> explained = ParameterReader.parseJsonObject(ParameterReader.parseJsonArray(resultSet.getString(1)).get(0));
+                Map<String, String> plan = ParameterReader.parseJsonObject(explained.get("Plan"));
+                estimatedBytes = Double.parseDouble(plan.get("Plan Rows")) * Double.parseDouble(plan.get("Plan Width"));
+            }
+            catch (SQLException | IOException | RuntimeException e) {
+                return MIN_PARTITIONS;
+            }
+            return (int) Math.max(MIN_PARTITIONS, Math.min(MAX_PARTITIONS, Math.ceil(estimatedBytes / partitionBytes)));
+        }
+
+        private static void compareHashed(Side left, Side right, ExecutorService executor, int partitionCount, long partitionBytes, DiffPrinter printer) throws SQLException {
+            Future<Partitions> leftFuture = executor.submit(() -> Partitions.write(left::next, left.columnCount, partitionCount, 0));
+            Future<Partitions> rightFuture = executor.submit(() -> Partitions.write(right::next, right.columnCount, partitionCount, 0));
+            try (Partitions before = awaitResult(leftFuture); Partitions after = awaitResult(rightFuture)) {
+                comparePartitions(before, after, before.totalBytes(), partitionBytes, printer);
+            }
+            catch (IOException e) {
+                throw new SQLException("Couldn't spill rows to disk: " + e.getMessage(), e);
+            }
+        }
+
+        /**
+         * Compares the partitions pair by pair, splitting any that are too big to read into 
+         * memory. Rows that hash alike, which are nearly always duplicates, stay together however 
+         * often they're split, so a partition that holds most of what it was split from is read 
+         * as it is. Duplicates only take one entry in memory each.
+         */
+        private static void comparePartitions(Partitions before, Partitions after, long parentBytes, long partitionBytes, DiffPrinter printer) throws SQLException, IOException {
+            for (int partition = 0; partition < before.count; partition++) {
+                long bytes = before.bytes[partition];
+                if (bytes > partitionBytes && bytes <= parentBytes / 2 && before.level < MAX_SPLITS) {
+                    int count = (int) Math.max(MIN_PARTITIONS, Math.min(MAX_PARTITIONS, bytes / partitionBytes + 1));
+                    try (
+                        DataInputStream beforeIn = before.open(partition);
+                        DataInputStream afterIn = after.open(partition);
+                        Partitions beforeSplit = Partitions.write(() -> Partitions.read(beforeIn, before.columnCount), before.columnCount, count, before.level + 1);
+                        Partitions afterSplit = Partitions.write(() -> Partitions.read(afterIn, after.columnCount), after.columnCount, count, after.level + 1)
+                    ) {
+                        before.delete(partition);
+                        after.delete(partition);
+                        comparePartitions(beforeSplit, afterSplit, bytes, partitionBytes, printer);
+                    }
+                    continue;
+                }
+
+                Map<List<String>, Integer> counts = new HashMap<>();
+                Map<List<String>, Row> rows = new HashMap<>();
+                try (DataInputStream in = before.open(partition)) {
+                    Row row;
+                    while ((row = Partitions.read(in, before.columnCount)) != null) {
+                        List<String> cells = Arrays.asList(row.cells);
+                        counts.merge(cells, 1, Integer::sum);
+                        rows.putIfAbsent(cells, row);
+                    }
+                }
+                try (DataInputStream in = after.open(partition)) {
+                    Row row;
+                    while ((row = Partitions.read(in, after.columnCount)) != null) {
+                        List<String> cells = Arrays.asList(row.cells);
+                        Integer count = counts.get(cells);
+                        if (count == null || count == 0) {
+                            printer.added(row);
+                            continue;
+                        }
+                        counts.put(cells, count - 1);
+                        printer.same++;
+                    }
+                }
+                for (Entry<List<String>, Integer> count : counts.entrySet()) {
+                    for (int i = 0; i < count.getValue(); i++) printer.removed(rows.get(count.getKey()));
+                }
+                before.delete(partition);
+                after.delete(partition);
+            }
+        }
+
+        /**
+         * One side of the diff, a query running through a cursor on its own connection
+         */
+        static class Side implements AutoCloseable {
+            public Connection connection;
+            public Statement statement;
+            public ResultSet resultSet;
+            public DecodePlan plan;
+            /** columns of the query itself, leaving out the key columns added after them */
+            public int columnCount;
+            public int keyCount;
+            private boolean restoreAutoCommit;
+
+            public static Side open(Connection connection, String sql, int keyCount, RunOptions options) throws SQLException {
+                Side side = new Side();
+                side.connection = connection;
+                side.keyCount = keyCount;
+
+                // the driver only uses a cursor inside a transaction, one the script opened itself 
+                // is left alone
+                side.restoreAutoCommit = connection.getAutoCommit() && isTransactionIdle(connection);
+                if (side.restoreAutoCommit) connection.setAutoCommit(false);
+
+                try {
+                    side.statement = connection.createStatement();
+                    side.statement.setFetchSize(options.fetchSize);
+                    side.resultSet = side.statement.executeQuery(sql);
+                    side.plan = new DecodePlan(side.resultSet.getMetaData(), null, 0, TypeRegistry.of(side.resultSet));
+                    side.columnCount = side.plan.columnCount - keyCount;
+                    return side;
+                }
+                catch (SQLException e) {
+                    if (side.statement != null) side.statement.close();
+                    if (side.restoreAutoCommit) {
+                        connection.rollback();
+                        connection.setAutoCommit(true);
+                    }
+                    throw e;
+                }
+            }
+
+            /**
+             * Reads the next row, or returns null after the last one
+             */
+            public Row next() throws SQLException {
+                if (!resultSet.next()) return null;
+
+                Row row = new Row();
+                row.cells = new String[columnCount];
+                for (int i = 0; i < columnCount; i++) {
+                    Object value = plan.getValue(resultSet, i);
+                    if (value instanceof byte[] bytes) row.cells[i] = "\\x" + HexFormat.of().formatHex(bytes);
+                    else if (value != null) row.cells[i] = value.toString();
+                }
+                row.keys = new String[keyCount];
+                for (int i = 0; i < keyCount; i++) {
+                    row.keys[i] = resultSet.getString(columnCount + i + 1);
+                }
+                return row;
+            }
+
+            @Override
+            public void close() throws SQLException {
+                try {
+                    resultSet.close();
+                    statement.close();
+                }
+                finally {
+                    if (restoreAutoCommit) {
+                        connection.rollback();
+                        connection.setAutoCommit(true);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Reads a side's rows on its own thread a chunk at a time, so both sides keep fetching 
+         * while rows are being compared, with only a few chunks waiting at once
+         */
+        static class RowStream {
+            private BlockingQueue<List<Row>> queue = new LinkedBlockingQueue<>(QUEUED_CHUNKS);
+            private Future<Void> reader;
+            private List<Row> chunk = List.of();
+            private int index;
+            private boolean done;
+
+            public RowStream(Side side, ExecutorService executor, int chunkSize) {
+                reader = executor.submit(() -> {
+                    try {
+                        List<Row> rows = new ArrayList<>(chunkSize);
+                        Row row;
+                        while ((row = side.next()) != null) {
+                            rows.add(row);
+                            if (rows.size() == chunkSize) {
+                                queue.put(rows);
+                                rows = new ArrayList<>(chunkSize);
+                            }
+                        }
+                        if (!rows.isEmpty()) queue.put(rows);
+                    }
+                    finally {
+                        // an empty chunk marks the end, even when reading failed
+                        queue.put(List.of());
+                    }
+                    return null;
+                });
+            }
+
+            public Row next() throws SQLException {
+                if (index == chunk.size()) {
+                    if (done) return null;
+                    try {
+                        chunk = queue.take();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RuntimeException(e);
+                    }
+                    index = 0;
+                    if (chunk.isEmpty()) {
+                        done = true;
+                        awaitResult(reader);
+                        return null;
+                    }
+                }
+                return chunk.get(index++);
+            }
+        }
+
+        /**
+         * Rows spread over temporary files by their hash, so equal rows from both sides land in 
+         * the same numbered partition. The hash is mixed with how many times the rows have been 
+         * split, so splitting a partition again spreads its rows over new partitions.
+         */
+        static class Partitions implements AutoCloseable {
+            private Path directory;
+            public int count;
+            public int level;
+            public int columnCount;
+            /** bytes written to each partition */
+            public long[] bytes;
+
+            public static Partitions write(RowSource source, int columnCount, int count, int level) throws SQLException, IOException {
+                Partitions partitions = new Partitions();
+                partitions.directory = Files.createTempDirectory("dbdo-diff");
+                partitions.count = count;
+                partitions.level = level;
+                partitions.columnCount = columnCount;
+                partitions.bytes = new long[count];
+
+                DataOutputStream[] files = new DataOutputStream[count];
+                try {
+                    for (int i = 0; i < count; i++) {
+                        files[i] = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(partitions.file(i)), 1 << 14));
+                    }
+                    Row row;
+                    while ((row = source.next()) != null) {
+                        int partition = partitionOf(row.cells, level, count);
+                        DataOutputStream file = files[partition];
+                        long written = 0;
+                        for (String cell : row.cells) {
+                            written += 4;
+                            if (cell == null) {
+                                file.writeInt(-1);
+                                continue;
+                            }
+                            byte[] bytes = cell.getBytes(StandardCharsets.UTF_8);
+                            file.writeInt(bytes.length);
+                            file.write(bytes);
+                            written += bytes.length;
+                        }
+                        partitions.bytes[partition] += written;
+                    }
+                }
+                catch (SQLException | IOException | RuntimeException e) {
+                    for (DataOutputStream file : files) {
+                        if (file != null) file.close();
+                    }
+                    partitions.close();
+                    throw e;
+                }
+                for (DataOutputStream file : files) {
+                    file.close();
+                }
+                return partitions;
+            }
+
+            static int partitionOf(String[] cells, int level, int count) {
+                // spread the hash's high bits too, plain row hashes cluster on similar rows
+                int hash = Arrays.hashCode(cells) + level * 0x9E3779B9;
+                hash ^= hash >>> 16;
+                hash *= 0x85EBCA6B;
+                hash ^= hash >>> 13;
+                hash *= 0xC2B2AE35;
+                hash ^= hash >>> 16;
+                return Math.floorMod(hash, count);
+            }
+
+            public long totalBytes() {
+                return Arrays.stream(bytes).sum();
+            }
+
+            private Path file(int partition) {
+                return directory.resolve(partition + ".bin");
+            }
+
+            public DataInputStream open(int partition) throws IOException {
+                return new DataInputStream(new BufferedInputStream(Files.newInputStream(file(partition)), 1 << 14));
+            }
+
+            /**
+             * Frees a partition's disk space once it's been compared or split
+             */
+            public void delete(int partition) throws IOException {
+                Files.deleteIfExists(file(partition));
+            }
+
+            /**
+             * Reads the next row written to the partition, or returns null at its end
+             */
+            public static Row read(DataInputStream in, int columnCount) throws IOException {
+                Row row = new Row();
+                row.cells = new String[columnCount];
+                for (int i = 0; i < columnCount; i++) {
+                    int length;
+                    try {
+                        length = in.readInt();
+                    }
+                    catch (EOFException e) {
+                        if (i == 0) return null;
+                        throw e;
+                    }
+                    if (length == -1) continue;
+                    row.cells[i] = new String(in.readNBytes(length), StandardCharsets.UTF_8);
+                }
+                return row;
+            }
+
+            @Override
+            public void close() throws IOException {
+                for (int i = 0; i < count; i++) {
+                    delete(i);
+                }
+                Files.deleteIfExists(directory);
+            }
+        }
+
+        /**
+         * Prints rows that differ as cards, a chunk at a time, led by whether they were added, 
+         * removed or changed. Changed cells show the old value and the new one.
+         */
+        static class DiffPrinter {
+            public long added;
+            public long removed;
+            public long changed;
+            public long same;
+
+            private List<String> columnNames;
+            private PostgresType[] types;
+            private RunOptions options;
+            private TerminalWriter out;
+            private List<List<Record>> pending = new ArrayList<>();
+            private CardLayout layout;
+
+            public DiffPrinter(List<String> columnNames, PostgresType[] types, RunOptions options, TerminalWriter out) {
+                this.columnNames = columnNames;
+                this.types = types;
+                this.options = options;
+                this.out = out;
+            }
+
+            public void added(Row row) throws SQLException {
+                added++;
+                add(toCard("added", ADDED_COLOR, row.cells, null));
+            }
+
+            public void removed(Row row) throws SQLException {
+                removed++;
+                add(toCard("removed", REMOVED_COLOR, row.cells, null));
+            }
+
+            public void changed(Row before, Row after) throws SQLException {
+                changed++;
+                add(toCard("changed", CHANGED_COLOR, after.cells, before.cells));
+            }
+
+            private List<Record> toCard(String change, String color, String[] cells, String[] before) {
+                List<Record> records = new ArrayList<>(cells.length + 1);
+                Record header = new Record(PostgresType.text, "diff", change);
+                header.columnValueColorOverride = color;
+                records.add(header);
+
+                for (int i = 0; i < cells.length; i++) {
+                    Record record = new Record(types[i], columnNames.get(i), display(cells[i]));
+                    if (before != null && !Objects.equals(before[i], cells[i])) {
+                        record.columnValue = display(before[i]) + " -> " + record.columnValue;
+                        record.columnNameColorOverride = CHANGED_COLOR;
+                        record.columnValueColorOverride = CHANGED_COLOR;
+                    }
+                    records.add(record);
+                }
+                return records;
+            }
+
+            private String display(String cell) {
+                return cell == null ? "null" : ValueRewrite.formatText(cell, -1, options.maxValue);
+            }
+
+            private void add(List<Record> card) throws SQLException {
+                pending.add(card);
+                if (pending.size() == options.fetchSize) flush();
+            }
+
+            public void flush() {
+                if (pending.isEmpty()) return;
+
+                // lay out the cards from the first chunk like printResultSet does
+                if (layout == null) layout = CardLayout.fromSample(pending, -1, getTerminalWidth());
+                printCards(pending, layout, out);
+                out.flush();
+                pending = new ArrayList<>();
+            }
+        }
+    }
+
+    /**
+     * Runs script statements under EXPLAIN and prints each plan as an indented tree. Nodes that 
+     * take a big share of the time or buffer reads are highlighted, and nodes whose actual row 
+     * count is far from the planner's estimate are flagged. Without ANALYZE the plan is only 
+     * estimated, so nothing is run and nodes are highlighted by their share of the cost.
+     */
+    public static class Explainer {
+
+        private static final double HOT_SHARE = 0.5;
+        private static final double WARM_SHARE = 0.2;
+        /** how far off an estimate can be before it's flagged */
+        private static final double MISESTIMATE_RATIO = 10;
+
+        private static final String HOT_COLOR = AnsiControl.color(214, 75, 75);
+        private static final String WARM_COLOR = AnsiControl.color(214, 160, 75);
+        private static final String MISESTIMATE_COLOR = AnsiControl.color(214, 75, 200);
+        private static final String DETAIL_COLOR = AnsiControl.color(120, 120, 120);
+
+        private static final Pattern EXPLAINABLE = Pattern.compile("^(select|with|values|table|insert|update|delete|merge|execute)\\b");
+        private static final List<String> CONDITIONS = List.of("Index Cond", "Recheck Cond", "Hash Cond", "Merge Cond", "Join Filter", "Filter");
+
+        /**
+         * One node of a plan. Times are in ms and, like rows, add up every loop. Times and 
+         * buffer reads are the node's own, without its children's.
+         */
+        public static class PlanNode {
+            public String label;
+            public List<String> details = new ArrayList<>();
+            public List<PlanNode> children = new ArrayList<>();
+
+            public double estimatedRows;
+            public double actualRows;
+            public double loops;
+            public double cost;
+            public double selfCost;
+            public double time;
+            public double selfTime;
+            public long hitBlocks;
+            public long readBlocks;
+            public long selfReadBlocks;
+        }
+
+        /**
+         * Explains one statement and prints its plan. With ANALYZE every statement is rolled 
+         * back once it's been measured, even queries can write through the functions they call. 
+         * Statements EXPLAIN doesn't take, such as SET, DDL or CALL, are run as usual and rolled 
+         * back too, or skipped when only planning, so nothing is ever left changed.
+         */
+        public static void explainStatement(Connection connection, String sql, RunOptions options, TerminalWriter out) throws SQLException {
+            String code = sql.lines()
+                .filter(line -> !line.trim().startsWith("--"))
+                .collect(Collectors.joining("\n"))
+                .trim()
+                .toLowerCase();
+            if (!EXPLAINABLE.matcher(code).find()) {
+                if (options.explainAnalyze) {
+                    rolledBack(connection, statement -> {
+                        runStatement(connection, sql, options, out);
+                        return null;
+                    });
+                }
+                out.println(DETAIL_COLOR + (options.explainAnalyze ? "(not explainable, run and rolled back)" : "(not explainable, skipped)") + AnsiControl.RESET);
+                out.flush();
+                return;
+            }
+
+            long start = System.nanoTime();
+            String explain = "EXPLAIN (" + (options.explainAnalyze ? "ANALYZE, BUFFERS, " : "") + "FORMAT JSON) " + sql;
+            Work<String> plan = statement -> {
+                try (ResultSet resultSet = statement.executeQuery(explain)) {
+                    resultSet.next();
+                    return resultSet.getString(1);
+                }
+            };
+            String json;
+            if (options.explainAnalyze) {
+                json = rolledBack(connection, plan);
+            }
+            else {
+                try (Statement statement = connection.createStatement()) {
+                    json = plan.run(statement);
+                }
+            }
+
+            try {
+                // a one element array holding the plan and its timings
+                Map<String, String> explained = ParameterReader.parseJsonObject(ParameterReader.parseJsonArray(json).get(0));
+                PlanNode root = parseNode(ParameterReader.parseJsonObject(explained.get("Plan")), 1);
+                double executionTime = number(explained, "Execution Time");
+                printPlan(root, options.explainAnalyze, executionTime > 0 ? executionTime : root.time, out);
+
+                String summary = options.explainAnalyze ? 
+                    "planning " + formatMillis(number(explained, "Planning Time")) + ", execution " + formatMillis(executionTime) : 
+                    "estimated cost " + String.format("%.1f", root.cost) + ", not run";
+                if (options.explainAnalyze && !isReadOnly(sql)) summary += ", changes rolled back";
+                printStatementFooter(summary, start, out);
+            }
+            catch (IOException e) {
+                throw new SQLException("Couldn't read the plan: " + e.getMessage(), e);
+            }
+            out.flush();
+        }
+
+        /** something run on a statement of the connection it's given */
+        interface Work<T> {
+            T run(Statement statement) throws SQLException;
+        }
+
+        /**
+         * Runs the work and undoes whatever it changed, in a transaction of its own when there's 
+         * none open, otherwise in a savepoint inside the script's so only the work is undone
+         */
+        private static <T> T rolledBack(Connection connection, Work<T> work) throws SQLException {
+            boolean ownTransaction = connection.getAutoCommit() && isTransactionIdle(connection);
+            try (Statement statement = connection.createStatement()) {
+                if (ownTransaction) connection.setAutoCommit(false);
+                else statement.execute("SAVEPOINT dbdo_explain");
+                try {
+                    return work.run(statement);
+                }
+                finally {
+                    if (ownTransaction) {
+                        connection.rollback();
+                        connection.setAutoCommit(true);
+                    }
+                    else {
+                        statement.execute("ROLLBACK TO SAVEPOINT dbdo_explain");
+                        statement.execute("RELEASE SAVEPOINT dbdo_explain");
+                    }
+                }
+            }
+        }
+
+        /**
+         * Reads a node and its children. Under a Gather, 'processes' workers and the leader run 
+         * the node side by side and its loops add up across all of them, so its time is what one 
+         * process spent rather than the sum, which would add up to more than the query took.
+         */
+        static PlanNode parseNode(Map<String, String> fields, double processes) throws IOException {
+            PlanNode node = new PlanNode();
+            node.label = getLabel(fields);
+            node.estimatedRows = number(fields, "Plan Rows");
+            node.cost = number(fields, "Total Cost");
+            node.loops = number(fields, "Actual Loops");
+            node.actualRows = number(fields, "Actual Rows") * node.loops;
+            node.time = number(fields, "Actual Total Time") * node.loops / processes;
+            node.hitBlocks = (long) number(fields, "Shared Hit Blocks");
+            node.readBlocks = (long) number(fields, "Shared Read Blocks");
+
+            for (String condition : CONDITIONS) {
+                if (fields.get(condition) != null) node.details.add(condition + ": " + fields.get(condition));
+            }
+            if (number(fields, "Rows Removed by Filter") > 0) {
+                node.details.add("Rows Removed by Filter: " + (long) number(fields, "Rows Removed by Filter"));
+            }
+
+            node.selfCost = node.cost;
+            node.selfTime = node.time;
+            node.selfReadBlocks = node.readBlocks;
+            if (fields.get("Plans") != null) {
+                // the leader runs the plan alongside the workers it launched
+                double childProcesses = fields.get("Workers Launched") != null ? number(fields, "Workers Launched") + 1 : processes;
+                for (String child : ParameterReader.parseJsonArray(fields.get("Plans"))) {
+                    PlanNode childNode = parseNode(ParameterReader.parseJsonObject(child), childProcesses);
+                    node.children.add(childNode);
+
+                    // parents count their children's work in with their own
+                    node.selfCost -= childNode.cost;
+                    node.selfTime -= childNode.time;
+                    node.selfReadBlocks -= childNode.readBlocks;
+                }
+            }
+            node.selfCost = Math.max(0, node.selfCost);
+            node.selfTime = Math.max(0, node.selfTime);
+            node.selfReadBlocks = Math.max(0, node.selfReadBlocks);
+            return node;
+        }
+
+        /**
+         * Names the node the way psql's text plans do, such as 'Hash Left Join' or 
+         * 'Index Scan using users_pkey on users u'
+         */
+        private static String getLabel(Map<String, String> fields) {
+            String label = fields.get("Node Type");
+            String joinType = fields.get("Join Type");
+            if (joinType != null && !joinType.equals("Inner")) {
+                label = label.endsWith("Join") ? 
+                    label.replace("Join", joinType + " Join") : 
+                    label + " " + joinType + " Join";
+            }
+            if (fields.get("Index Name") != null) label += " using " + fields.get("Index Name");
+            if (fields.get("Relation Name") != null) {
+                label += " on " + fields.get("Relation Name");
+                String alias = fields.get("Alias");
+                if (alias != null && !alias.equals(fields.get("Relation Name"))) label += " " + alias;
+            }
+            else if (fields.get("CTE Name") != null) {
+                label += " on " + fields.get("CTE Name");
+            }
+            if (fields.get("Parent Relationship") != null && !fields.get("Parent Relationship").matches("Outer|Inner|Member")) {
+                label = fields.get("Parent Relationship") + ": " + label;
+            }
+            return label;
+        }
+
+        static void printPlan(PlanNode root, boolean analyzed, double totalTime, TerminalWriter out) {
+            out.newLine();
+            printNode(root, analyzed, totalTime, root.cost, Math.max(1, root.readBlocks), 0, out);
+            out.newLine();
+        }
+
+        private static void printNode(PlanNode node, boolean analyzed, double totalTime, double totalCost, long totalReads, int depth, TerminalWriter out) {
+            String indent = " ".repeat(depth * 4);
+            String prefix = depth == 0 ? "" : "-> ";
+
+            // highlight by whichever share is bigger, time or reads when run, otherwise cost
+            double share = analyzed ? 
+                Math.max(totalTime > 0 ? node.selfTime / totalTime : 0, (double) node.selfReadBlocks / totalReads) : 
+                totalCost > 0 ? node.selfCost / totalCost : 0;
+            String color = share >= HOT_SHARE ? HOT_COLOR : share >= WARM_SHARE ? WARM_COLOR : "";
+
+            StringBuilder line = new StringBuilder();
+            line.append(indent).append(prefix).append(color).append(node.label).append(AnsiControl.RESET);
+            line.append(DETAIL_COLOR);
+            if (!analyzed) {
+                line.append("  cost ").append(String.format("%.1f", node.cost));
+                line.append("  self ").append(formatShare(totalCost > 0 ? node.selfCost / totalCost : 0));
+                line.append("  rows ~").append(formatCount(node.estimatedRows));
+            }
+            else if (node.loops == 0) {
+                line.append("  never executed");
+            }
+            else {
+                line.append("  ").append(formatMillis(node.time));
+                line.append("  self ").append(formatShare(totalTime > 0 ? node.selfTime / totalTime : 0));
+                line.append("  rows ").append(formatCount(node.actualRows));
+                if (node.loops > 1) line.append("  loops ").append(formatCount(node.loops));
+                if (node.hitBlocks + node.readBlocks > 0) {
+                    line.append("  hit ").append(formatCount(node.hitBlocks)).append(" read ").append(formatCount(node.readBlocks));
+                }
+            }
+            line.append(AnsiControl.RESET);
+
+            // estimates are per loop, so compare against the rows of an average loop
+            if (analyzed && node.loops > 0) {
+                double actual = Math.max(1, node.actualRows / node.loops);
+                double estimated = Math.max(1, node.estimatedRows);
+                double ratio = Math.max(actual, estimated) / Math.min(actual, estimated);
+                if (ratio >= MISESTIMATE_RATIO) {
+                    line.append(MISESTIMATE_COLOR)
+                        .append("  estimated ").append(formatCount(node.estimatedRows))
+                        .append(", ").append(formatCount(ratio)).append("x ").append(actual > estimated ? "under" : "over")
+                        .append(AnsiControl.RESET);
+                }
+            }
+            out.println(line.toString());
+
+            String detailIndent = indent + " ".repeat(prefix.length() + 2);
+            for (String detail : node.details) {
+                if (detail.length() > 120) detail = detail.substring(0, 120) + "...";
+                out.println(detailIndent + DETAIL_COLOR + detail + AnsiControl.RESET);
+            }
+            for (PlanNode child : node.children) {
+                printNode(child, analyzed, totalTime, totalCost, totalReads, depth + 1, out);
+            }
+        }
+
+        private static double number(Map<String, String> fields, String key) {
+            String value = fields.get(key);
+            return value != null ? Double.parseDouble(value) : 0;
+        }
+
+        private static String formatMillis(double millis) {
+            return String.format("%.1f ms", millis);
+        }
+
+        private static String formatShare(double share) {
+            return Math.round(share * 100) + "%";
+        }
+
+        private static String formatCount(double count) {
+            return String.format("%,d", Math.round(count));
+        }
+    }
+
+    /**
+     * Runs queries with only about a screen of their rows fetched, and prints how many rows the 
+     * planner thinks there are in all rather than counting them
+     */
+    public static class Previewer {
+
+        /** how wide values are guessed to be when working out how many cards fit */
+        private static final int GUESSED_VALUE_WIDTH = 20;
+        /** how many times more rows than needed a sample aims for, since pages vary */
+        private static final int OVERSAMPLE = 4;
+
+        // sampling an aggregate, a window, distinct rows or a join would change the answer rather 
+        // than just shorten it
+        private static final Pattern SINGLE_TABLE = Pattern.compile(
+            "^(select\\s+.+?\\s+from\\s+((?:\"[^\"]+\"|\\w+)(?:\\.(?:\"[^\"]+\"|\\w+))?)" + 
+            "(?:\\s+(?:as\\s+)?(?!where\\b|order\\b|limit\\b)\\w+)?)" + 
+            "(\\s+(?:where|order|limit)\\b.*)?$", 
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL
+        );
+        private static final Pattern SELECT = Pattern.compile("\\bselect\\b", Pattern.CASE_INSENSITIVE);
+        private static final Pattern GROUPING = Pattern.compile("\\b(group\\s+by|having|over|distinct)\\b", Pattern.CASE_INSENSITIVE);
+        // aggregates can't be told from other functions by name, the plan shows them though
+        private static final Pattern GROUPING_NODE = Pattern.compile("\"Node Type\":\\s*\"(Aggregate|WindowAgg|Group|Unique|SetOp)\"");
+        private static final Pattern IDENTIFIER = Pattern.compile("\"[^\"]+\"|\\w+");
+
+        /**
+         * Previews a plain query. Anything else is run as usual. It takes two round trips before 
+         * the preview itself, an EXPLAIN for the estimate and whether it can be sampled, and a 
+         * describe whose columns give both how many cards fit and the --max-value rewrite.
+         */
+        public static void previewStatement(Connection connection, String sql, RunOptions options, TerminalWriter out) throws SQLException {
+            if (!Exporter.isCopyable(sql)) {
+                runStatement(connection, sql, options, out);
+                return;
+            }
+
+            Plan plan = Plan.of(connection, sql);
+
+            // described by running it for no rows, a prepared statement would take jsonb 
+            // operators like ? for placeholders
+            int limit;
+            String query = sql;
+            boolean sampled = false;
+            ValueRewrite rewrite = null;
+            try (Statement statement = connection.createStatement(); ResultSet resultSet = statement.executeQuery("SELECT * FROM (" + sql + "\n) AS dbdo_q LIMIT 0")) {
+                ResultSetMetaData metaData = resultSet.getMetaData();
+                limit = rowsThatFit(metaData);
+
+                // a sample needs enough rows to be worth it, smaller results just get their first rows
+                if (options.previewSample && plan.rows > (long) limit * OVERSAMPLE * 10 && plan.sampleable) {
+                    String withSample = addTableSample(sql, 100.0 * limit * OVERSAMPLE / plan.rows);
+                    if (withSample != null) {
+                        query = withSample;
+                        sampled = true;
+                    }
+                }
+
+                // sampling and the limit leave the columns as they were described
+                if (options.maxValue > 0) rewrite = ValueRewrite.of(connection, previewSql(query, limit), metaData, options.maxValue);
+            }
+
+            runStatement(connection, previewSql(query, limit), rewrite, System.nanoTime(), options, out);
+            out.println(
+                AnsiControl.color(120, 120, 120) + "(preview of up to " + limit + (sampled ? " sampled" : "") + 
+                " rows, the planner estimates " + String.format("%,d", plan.rows) + (plan.rows == 1 ? " row" : " rows") + " in all)" + 
+                AnsiControl.RESET
+            );
+            out.flush();
+        }
+
+        private static String previewSql(String query, int limit) {
+            // on its own line so a trailing comment in the query can't swallow the closing paren
+            return "SELECT * FROM (" + query + "\n) AS dbdo_preview LIMIT " + limit;
+        }
+
+        /**
+         * How many cards fit on one screen, guessing at value widths since no rows have been 
+         * read yet
+         */
+        private static int rowsThatFit(ResultSetMetaData metaData) throws SQLException {
+            int columns = metaData.getColumnCount();
+            int labelWidth = 0;
+            for (int i = 1; i <= columns; i++) {
+                labelWidth = Math.max(labelWidth, metaData.getColumnName(i).length());
+            }
+
+            // each line of cards is a line per column plus a blank line above and below
+            int cardWidth = labelWidth + EXTRA_SPACE_BEFORE_VALUE + GUESSED_VALUE_WIDTH + 1;
+            int cardsPerLine = Math.max(1, getTerminalWidth() / cardWidth);
+            int linesOfCards = Math.max(1, (getTerminalHeight() - 1) / (columns + 2));
+            return cardsPerLine * linesOfCards;
+        }
+
+        /**
+         * What a single EXPLAIN says about the query without running it
+         */
+        static class Plan {
+            /** the planner's row estimate for the whole query */
+            long rows;
+            /** whether TABLESAMPLE can shorten it without changing the answer */
+            boolean sampleable;
+
+            static Plan of(Connection connection, String sql) throws SQLException {
+                String json;
+                try (Statement statement = connection.createStatement(); ResultSet resultSet = statement.executeQuery("EXPLAIN (VERBOSE, FORMAT JSON) " + sql)) {
+                    resultSet.next();
+                    json = resultSet.getString(1);
+                }
+
+                Plan plan = new Plan();
+                try {
+                    Map<String, String> explained = ParameterReader.parseJsonObject(ParameterReader.parseJsonArray(json).get(0));
+                    plan.rows = (long) Double.parseDouble(ParameterReader.parseJsonObject(explained.get("Plan")).get("Plan Rows"));
+                }
+                catch (IOException e) {
+                    throw new SQLException("Couldn't read the plan: " + e.getMessage(), e);
+                }
+                plan.sampleable = isSampleable(sql, json);
+                return plan;
+            }
+        }
+
+        /**
+         * Whether the query reads a single table that TABLESAMPLE works on without grouping, 
+         * aggregating or windowing its rows. The plan has to scan exactly the table the query 
+         * names, since a view shows up as the tables under it, a partitioned table as its 
+         * partitions and a foreign table as a foreign scan, and none of them take a sample.
+         */
+        private static boolean isSampleable(String sql, String plan) {
+            Matcher matcher = matchSingleTable(sql);
+            if (matcher == null) return false;
+            if (GROUPING_NODE.matcher(plan).find() || plan.contains("\"Foreign Scan\"")) return false;
+
+            Set<List<String>> relations = new HashSet<>();
+            Matcher relation = ResultCache.RELATION.matcher(plan);
+            while (relation.find()) {
+                relations.add(List.of(ResultCache.unescapeJson(relation.group(2)), ResultCache.unescapeJson(relation.group(1))));
+            }
+            if (relations.size() != 1) return false;
+            List<String> scanned = relations.iterator().next();
+
+            // the name as the server reads it, quoted parts as written and the rest lower cased
+            List<String> named = new ArrayList<>();
+            Matcher part = IDENTIFIER.matcher(matcher.group(2));
+            while (part.find()) {
+                String identifier = part.group();
+                named.add(identifier.startsWith("\"") ? identifier.substring(1, identifier.length() - 1) : identifier.toLowerCase(Locale.ROOT));
+            }
+            return named.size() == 1 ? 
+                scanned.get(1).equals(named.get(0)) : 
+                scanned.equals(named);
+        }
+
+        /**
+         * Adds a TABLESAMPLE SYSTEM of 'percent' to a query that reads a single table, or returns 
+         * null for anything more involved. SYSTEM picks whole pages at random, so the server only 
+         * reads the pages it keeps.
+         */
+        static String addTableSample(String sql, double percent) {
+            Matcher matcher = matchSingleTable(sql);
+            if (matcher == null) return null;
+
+            String rest = matcher.group(3) != null ? matcher.group(3) : "";
+            return matcher.group(1) + 
+                String.format(Locale.ROOT, " TABLESAMPLE SYSTEM (%.6f)", Math.min(100, percent)) + 
+                rest;
+        }
+
+        private static Matcher matchSingleTable(String sql) {
+            // a subquery could hold the first 'from'
+            Matcher selects = SELECT.matcher(sql);
+            if (!selects.find() || selects.find()) return null;
+
+            if (GROUPING.matcher(sql).find()) return null;
+
+            Matcher matcher = SINGLE_TABLE.matcher(sql.trim());
+            return matcher.matches() ? matcher : null;
+        }
+    }
+
+    /**
+     * Full screen viewer for query results. The query runs behind a scrollable server side cursor 
+     * and rows are fetched a block at a time as they scroll into view, keeping only a few decoded 
+     * blocks in memory, so browsing a huge table only costs the rows actually looked at.
+     */
+    public static class Pager {
+
+        private static final int BLOCK_SIZE = 200;
+        private static final int CACHED_BLOCKS = 8;
+        private static final int MAX_COLUMN_WIDTH = 40;
+        private static final String CURSOR_NAME = "dbdo_pager";
+        /** how long to wait for the rest of an escape sequence before taking it as a lone Esc */
+        private static final long ESCAPE_TIMEOUT_MS = 50;
+
+        private Connection connection;
+        private int maxValue;
+        private ValueRewrite rewrite;
+        private DecodePlan plan;
+        private long knownRowCount = -1;
+        private Map<Long, List<String[]>> blocks = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, List<String[]>> eldest) {
+                return size() > CACHED_BLOCKS;
+            }
+        };
+
+        private long topRow = 0;
+        private int firstColumn = 0;
+
+        /**
+         * Pages through each plain query in the script, other statements run as normal
+         */
+        public static void pageScript(Connection connection, List<String> statements, RunOptions options) throws SQLException {
+            for (int i = 0; i < statements.size(); i++) {
+                String sql = statements.get(i);
+                if (Exporter.isCopyable(sql)) {
+                    // a cursor that isn't WITH HOLD only lives until the transaction ends
+                    readThroughCursor(connection, () -> {
+                        new Pager(connection, options.maxValue).page(sql);
+                        return null;
+                    });
+                }
+                else {
+                    if (statements.size() > 1) printStatementHeader(i + 1, statements.size(), sql, TERMINAL);
+                    runStatement(connection, sql, options, TERMINAL);
+                }
+            }
+        }
+
+        public Pager(Connection connection, int maxValue) {
+            this.connection = connection;
+            this.maxValue = maxValue;
+        }
+
+        public void page(String sql) throws SQLException {
+            if (maxValue > 0) rewrite = ValueRewrite.of(connection, sql, maxValue);
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("DECLARE " + CURSOR_NAME + " SCROLL CURSOR FOR " + (rewrite != null ? rewrite.sql : sql));
+            }
+
+            String terminalSettings = null;
+            Thread restoreTerminal = null;
+            try (InputStream keys = new FileInputStream("/dev/tty")) {
+                terminalSettings = stty("-g").trim();
+                // ctrl+c skips the finally below, so put the terminal back on the way out too
+                String settings = terminalSettings;
+                restoreTerminal = new Thread(() -> {
+                    stty(settings);
+                    System.out.print(AnsiControl.SHOW_CURSOR);
+                    System.out.flush();
+                });
+                Runtime.getRuntime().addShutdownHook(restoreTerminal);
+                stty("-icanon -echo min 1");
+                System.out.print(AnsiControl.HIDE_CURSOR);
+
+                boolean done = false;
+                while (!done) {
+                    draw(null);
+                    done = handleKey(keys);
+                }
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            finally {
+                if (restoreTerminal != null) {
+                    try {
+                        Runtime.getRuntime().removeShutdownHook(restoreTerminal);
+                    }
+                    catch (IllegalStateException e) {
+                        // already shutting down, the hook puts the terminal back
+                    }
+                }
+                if (terminalSettings != null) stty(terminalSettings);
+                System.out.print(AnsiControl.SHOW_CURSOR.toString() + AnsiControl.CLEAR_SREEN);
+                System.out.flush();
+
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("CLOSE " + CURSOR_NAME);
+                }
+            }
+        }
+
+        /**
+         * Acts on the next key press, returning true when the user quits
+         */
+        private boolean handleKey(InputStream keys) throws IOException, SQLException {
+            int pageSize = getPageSize();
+            int key = keys.read();
+
+            // arrow keys come through as escape sequences, Esc on its own is ignored
+            if (key == 27) {
+                key = readSequenceByte(keys) != '[' ? 0 : switch (readSequenceByte(keys)) {
+                    case 'A' -> 'k';
+                    case 'B' -> 'j';
+                    case 'C' -> 'l';
+                    case 'D' -> 'h';
+                    case '5' -> { readSequenceByte(keys); yield 'b'; }
+                    case '6' -> { readSequenceByte(keys); yield ' '; }
+                    default -> 0;
+                };
+            }
+
+            switch (key) {
+                case 'q', -1 -> { return true; }
+                case 'j', '\n' -> topRow++;
+                case 'k' -> topRow--;
+                case ' ', 'f' -> topRow += pageSize;
+                case 'b' -> topRow -= pageSize;
+                case 'l' -> firstColumn++;
+                case 'h' -> firstColumn--;
+                case 'g' -> topRow = 0;
+                case 'G' -> topRow = getRowCount() - pageSize;
+                case ':' -> {
+                    StringBuilder number = new StringBuilder();
+                    int digit;
+                    draw(":" + number);
+                    while ((digit = keys.read()) != '\n' && digit != -1) {
+                        if (digit == 127 && number.length() > 0) number.setLength(number.length() - 1);
+                        // more digits than any row count could need would overflow a long
+                        else if (Character.isDigit(digit) && number.length() < 18) number.append((char) digit);
+                        draw(":" + number);
+                    }
+                    if (number.length() > 0) {
+                        topRow = Long.parseLong(number.toString()) - 1;
+                        // a row past the end finds where the end is, so it's kept in range below
+                        getRows(topRow, 1);
+                    }
+                }
+                default -> {}
+            }
+
+            // stay inside the result
+            if (knownRowCount != -1 && topRow > knownRowCount - pageSize) topRow = knownRowCount - pageSize;
+            if (topRow < 0) topRow = 0;
+            if (plan != null && firstColumn >= plan.columnCount) firstColumn = plan.columnCount - 1;
+            if (firstColumn < 0) firstColumn = 0;
+            return false;
+        }
+
+        /**
+         * Reads the next byte of an escape sequence, or returns -1 if none comes soon, since 
+         * the terminal sends a sequence all at once and a lone Esc has nothing after it
+         */
+        private static int readSequenceByte(InputStream keys) throws IOException {
+            long deadline = System.currentTimeMillis() + ESCAPE_TIMEOUT_MS;
+            while (keys.available() == 0) {
+                if (System.currentTimeMillis() > deadline) return -1;
+                try {
+                    Thread.sleep(5);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return -1;
+                }
+            }
+            return keys.read();
+        }
+
+        private int getPageSize() {
+            // leave room for the header and status lines
+            return Math.max(1, getTerminalHeight() - 2);
+        }
+
+        private void draw(String prompt) throws SQLException {
+            int pageSize = getPageSize();
+            int width = getTerminalWidth();
+            List<String[]> rows = getRows(topRow, pageSize);
+
+            TerminalWriter out = TERMINAL;
+            out.write(AnsiControl.CLEAR_SREEN.toString());
+
+            if (plan == null || plan.columnCount == 0) {
+                out.println("NO RESULTS");
+            }
+            else {
+                // size the visible columns from the rows on screen
+                int[] widths = new int[plan.columnCount];
+                for (int column = firstColumn; column < plan.columnCount; column++) {
+                    widths[column] = plan.columnNames[column].length();
+                    for (String[] row : rows) {
+                        widths[column] = Math.max(widths[column], row[column] == null ? 4 : row[column].length());
+                    }
+                    widths[column] = Math.min(widths[column], MAX_COLUMN_WIDTH);
+                }
+
+                // header
+                int used = 0;
+                out.write(AnsiControl.BOLD.toString());
+                for (int column = firstColumn; column < plan.columnCount && used < width; column++) {
+                    String name = fitToLength(plan.columnNames[column], Math.min(widths[column], width - used));
+                    out.write(name);
+                    used += name.length();
+                    if (used < width) { out.pad(1); used++; }
+                }
+                out.write(TerminalWriter.RESET);
+                out.newLine();
+
+                // rows
+                for (String[] row : rows) {
+                    used = 0;
+                    for (int column = firstColumn; column < plan.columnCount && used < width; column++) {
+                        String value = row[column] == null ? "null" : row[column];
+                        String cell = fitToLength(value.replace('\n', ' ').replace('\t', ' '), Math.min(widths[column], width - used));
+                        out.write(TerminalWriter.getColumnColorBytes(plan.types[column], row[column] == null ? null : value));
+                        out.write(cell);
+                        out.write(TerminalWriter.RESET);
+                        used += cell.length();
+                        if (used < width) { out.pad(1); used++; }
+                    }
+                    out.newLine();
+                }
+                for (int i = rows.size(); i < pageSize; i++) out.newLine();
+            }
+
+            // status line
+            String status = prompt != null ? prompt : 
+                "rows " + (rows.isEmpty() ? 0 : topRow + 1) + "-" + (topRow + rows.size()) + 
+                " of " + (knownRowCount == -1 ? "?" : knownRowCount) + 
+                "   j/k scroll  space/b page  h/l columns  g/G top/bottom  :jump  q quit";
+            out.write(AnsiControl.color(120, 120, 120));
+            out.write(status.length() > width ? status.substring(0, width) : status);
+            out.write(TerminalWriter.RESET);
+            out.flush();
+        }
+
+        /**
+         * Returns up to 'count' rows starting at the 0 based 'start' row, fetching any blocks 
+         * that aren't already in memory
+         */
+        private List<String[]> getRows(long start, int count) throws SQLException {
+            List<String[]> rows = new ArrayList<>(count);
+            long row = start;
+            while (rows.size() < count && (knownRowCount == -1 || row < knownRowCount)) {
+                long blockNumber = row / BLOCK_SIZE;
+                List<String[]> block = getBlock(blockNumber);
+                int offset = (int) (row - blockNumber * BLOCK_SIZE);
+                if (offset >= block.size()) break;
+
+                int end = Math.min(block.size(), offset + count - rows.size());
+                rows.addAll(block.subList(offset, end));
+                row += end - offset;
+            }
+            return rows;
+        }
+
+        private List<String[]> getBlock(long blockNumber) throws SQLException {
+            List<String[]> block = blocks.get(blockNumber);
+            if (block != null) return block;
+
+            block = new ArrayList<>(BLOCK_SIZE);
+            long start = blockNumber * BLOCK_SIZE;
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("MOVE ABSOLUTE " + start + " IN " + CURSOR_NAME);
+                try (ResultSet resultSet = statement.executeQuery("FETCH FORWARD " + BLOCK_SIZE + " FROM " + CURSOR_NAME)) {
+                    if (plan == null) plan = new DecodePlan(resultSet.getMetaData(), rewrite, maxValue, TypeRegistry.of(connection));
+                    while (resultSet.next()) {
+                        String[] row = new String[plan.columnCount];
+                        for (int i = 0; i < plan.columnCount; i++) {
+                            row[i] = plan.getDisplayValue(resultSet, i);
+                        }
+                        block.add(row);
+                    }
+                }
+            }
+
+            // a short block means we've found the end, an empty one past it only that the end is 
+            // somewhere before
+            if (block.size() < BLOCK_SIZE && (!block.isEmpty() || start == 0)) knownRowCount = start + block.size();
+            else if (block.isEmpty()) getRowCount();
+            blocks.put(blockNumber, block);
+            return block;
+        }
+
+        /**
+         * Counts the rows by moving the cursor to the end, which runs the rest of the query but 
+         * doesn't send any rows back
+         */
+        private long getRowCount() throws SQLException {
+            if (knownRowCount != -1) return knownRowCount;
+
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("MOVE ABSOLUTE 0 IN " + CURSOR_NAME);
+                statement.execute("MOVE FORWARD ALL IN " + CURSOR_NAME);
+                knownRowCount = statement.getUpdateCount();
+            }
+            return knownRowCount;
+        }
+
+        private static String stty(String args) {
+            try {
+                Process process = new ProcessBuilder("sh", "-c", "stty " + args + " < /dev/tty").start();
+                String output = new String(process.getInputStream().readAllBytes());
+                process.waitFor();
+                return output;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return "";
+            }
+        }
+    }
+
+    /**
+     * A statement with ':name' placeholders turned into the '?' placeholders jdbc takes, along 
+     * with the name that goes in each one. Casts like '::int', array slices like 'arr[lo:hi]' and 
+     * anything inside quotes, dollar quoted bodies or comments are left alone.
+     */
+    public static class NamedParameters {
+        public String sql;
+        /** name for each '?' in order, a name used twice appears twice */
+        public List<String> names = new ArrayList<>();
+
+        public static NamedParameters parse(String sql) {
+            NamedParameters parameters = new NamedParameters();
+            StringBuilder converted = new StringBuilder(sql.length());
+            int length = sql.length();
+            int brackets = 0;
+
+            int i = 0;
+            while (i < length) {
+                char c = sql.charAt(i);
+                char next = i + 1 < length ? sql.charAt(i + 1) : 0;
+                int end;
+
+                if (c == '-' && next == '-') {
+                    end = sql.indexOf('\n', i);
+                    end = end == -1 ? length : end + 1;
+                }
+                else if (c == '/' && next == '*') {
+                    end = i;
+                    int depth = 0;
+                    do {
+                        if (sql.startsWith("/*", end)) { depth++; end += 2; }
+                        else if (sql.startsWith("*/", end)) { depth--; end += 2; }
+                        else end++;
+                    } while (depth > 0 && end < length);
+                }
+                else if (c == '\'') {
+                    boolean backslashEscapes = i > 0 && 
+                        (sql.charAt(i - 1) == 'E' || sql.charAt(i - 1) == 'e') && 
+                        (i < 2 || !isIdentifierChar(sql.charAt(i - 2)));
+                    end = skipQuoted(sql, i, '\'', backslashEscapes);
+                }
+                else if (c == '"') {
+                    end = skipQuoted(sql, i, '"', false);
+                }
+                else if (c == '$' && (i == 0 || !isIdentifierChar(sql.charAt(i - 1))) && dollarTagEnd(sql, i) != -1) {
+                    String tag = sql.substring(i, dollarTagEnd(sql, i) + 1);
+                    int close = sql.indexOf(tag, i + tag.length());
+                    end = close == -1 ? length : close + tag.length();
+                }
+                // casts
+                else if (c == ':' && next == ':') {
+                    end = i + 2;
+                }
+                // jdbc reads a lone '?' as a placeholder, so operators like jsonb '?|' are doubled
+                else if (c == '?') {
+                    converted.append("??");
+                    i++;
+                    continue;
+                }
+                else if (c == '[' || c == ']') {
+                    brackets = Math.max(0, brackets + (c == '[' ? 1 : -1));
+                    end = i + 1;
+                }
+                else if (c == ':' && brackets == 0 && (Character.isLetter(next) || next == '_')) {
+                    end = i + 1;
+                    while (end < length && (Character.isLetterOrDigit(sql.charAt(end)) || sql.charAt(end) == '_')) end++;
+                    parameters.names.add(sql.substring(i + 1, end));
+                    converted.append('?');
+                    i = end;
+                    continue;
+                }
+                else {
+                    end = i + 1;
+                }
+
+                converted.append(sql, i, end);
+                i = end;
+            }
+
+            parameters.sql = converted.toString();
+            return parameters;
+        }
+
+        /**
+         * Sets every placeholder from the values. They're sent untyped, so the server reads the 
+         * text as whatever type each placeholder needs.
+         */
+        public void bind(PreparedStatement statement, Map<String, String> values) throws SQLException {
+            for (int i = 0; i < names.size(); i++) {
+                String name = names.get(i);
+                if (!values.containsKey(name)) {
+                    throw new SQLException("No value for :" + name + ", pass it as ':" + name + "=...' or add a '" + name + "' column to --params");
+                }
+                statement.setObject(i + 1, values.get(name), Types.OTHER);
+            }
+        }
+    }
+
+    /**
+     * Sets of placeholder values, either the single set given as args or one set per row of the 
+     * --params file layered over them. The file is read a row at a time so it can be any size.
+     */
+    public static class ParameterReader implements AutoCloseable {
+        private Map<String, String> defaults;
+        private ExportFormat format;
+        private BufferedReader reader;
+        private CsvReader csv;
+        private List<String> header;
+        private boolean done;
+
+        public static ParameterReader open(RunOptions options) throws IOException {
+            ParameterReader parameterReader = new ParameterReader();
+            parameterReader.defaults = options.parameters;
+            if (options.parameterFile != null) {
+                parameterReader.format = ExportFormat.fromFileName(options.parameterFile.getFileName().toString());
+                parameterReader.reader = Files.newBufferedReader(options.parameterFile, StandardCharsets.UTF_8);
+                if (parameterReader.format != ExportFormat.jsonl) {
+                    parameterReader.csv = new CsvReader(parameterReader.reader, parameterReader.format == ExportFormat.tsv ? '\t' : ',');
+                    parameterReader.header = parameterReader.csv.readRecord();
+                    if (parameterReader.header == null) parameterReader.done = true;
+                }
+            }
+            return parameterReader;
+        }
+
+        public boolean isFile() {
+            return reader != null;
+        }
+
+        /**
+         * Returns the next set of values, or null when there are no more
+         */
+        public Map<String, String> next() throws IOException {
+            if (done) return null;
+            if (reader == null) {
+                done = true;
+                return defaults;
+            }
+
+            Map<String, String> values = new HashMap<>(defaults);
+            if (csv != null) {
+                List<String> record = csv.readRecord();
+                // skip blank lines
+                while (record != null && record.size() == 1 && record.get(0) == null) record = csv.readRecord();
+                if (record == null) {
+                    done = true;
+                    return null;
+                }
+                for (int i = 0; i < header.size(); i++) {
+                    values.put(header.get(i), i < record.size() ? record.get(i) : null);
+                }
+                return values;
+            }
+
+            String line = reader.readLine();
+            while (line != null && line.isBlank()) line = reader.readLine();
+            if (line == null) {
+                done = true;
+                return null;
+            }
+            values.putAll(parseJsonObject(line));
+            return values;
+        }
+
+        /**
+         * Reads a flat json object into text values. Nested objects and arrays are kept as json 
+         * text so they can be bound to json columns.
+         */
+        public static Map<String, String> parseJsonObject(String json) throws IOException {
+            Map<String, String> values = new LinkedHashMap<>();
+            int[] at = { skipWhitespace(json, 0) };
+            expect(json, at, '{');
+            at[0] = skipWhitespace(json, at[0]);
+            if (at[0] < json.length() && json.charAt(at[0]) == '}') return values;
+
+            while (true) {
+                at[0] = skipWhitespace(json, at[0]);
+                String key = readJsonString(json, at);
+                at[0] = skipWhitespace(json, at[0]);
+                expect(json, at, ':');
+                at[0] = skipWhitespace(json, at[0]);
+                values.put(key, readJsonValue(json, at));
+                at[0] = skipWhitespace(json, at[0]);
+                if (at[0] < json.length() && json.charAt(at[0]) == ',') {
+                    at[0]++;
+                    continue;
+                }
+                expect(json, at, '}');
+                return values;
+            }
+        }
+
+        /**
+         * Reads a json array into its elements. Objects and arrays are kept as json text, like 
+         * they are in parseJsonObject.
+         */
+        public static List<String> parseJsonArray(String json) throws IOException {
+            List<String> values = new ArrayList<>();
+            int[] at = { skipWhitespace(json, 0) };
+            expect(json, at, '[');
+            at[0] = skipWhitespace(json, at[0]);
+            if (at[0] < json.length() && json.charAt(at[0]) == ']') return values;
+
+            while (true) {
+                at[0] = skipWhitespace(json, at[0]);
+                values.add(readJsonValue(json, at));
+                at[0] = skipWhitespace(json, at[0]);
+                if (at[0] < json.length() && json.charAt(at[0]) == ',') {
+                    at[0]++;
+                    continue;
+                }
+                expect(json, at, ']');
+                return values;
+            }
+        }
+
+        private static String readJsonValue(String json, int[] at) throws IOException {
+            if (at[0] >= json.length()) throw new IOException("Unexpected end of json line: " + json);
+
+            char c = json.charAt(at[0]);
+            if (c == '"') return readJsonString(json, at);
+            if (c == '{' || c == '[') {
+                int start = at[0];
+                int depth = 0;
+                while (at[0] < json.length()) {
+                    char current = json.charAt(at[0]);
+                    if (current == '"') {
+                        readJsonString(json, at);
+                        continue;
+                    }
+                    if (current == '{' || current == '[') depth++;
+                    if (current == '}' || current == ']') depth--;
+                    at[0]++;
+                    if (depth == 0) return json.substring(start, at[0]);
+                }
+                throw new IOException("Unexpected end of json line: " + json);
+            }
+
+            // numbers, true, false and null
+            int start = at[0];
+            while (at[0] < json.length() && ",}] \t\r\n".indexOf(json.charAt(at[0])) == -1) at[0]++;
+            String literal = json.substring(start, at[0]);
+            return literal.equals("null") ? null : literal;
+        }
+
+        private static String readJsonString(String json, int[] at) throws IOException {
+            expect(json, at, '"');
+            StringBuilder str = new StringBuilder();
+            while (at[0] < json.length()) {
+                char c = json.charAt(at[0]++);
+                if (c == '"') return str.toString();
+                if (c != '\\') {
+                    str.append(c);
+                    continue;
+                }
+                if (at[0] >= json.length()) break;
+
+                char escaped = json.charAt(at[0]++);
+                switch (escaped) {
+                    case 'b' -> str.append('\b');
+                    case 'f' -> str.append('\f');
+                    case 'n' -> str.append('\n');
+                    case 'r' -> str.append('\r');
+                    case 't' -> str.append('\t');
+                    case 'u' -> {
+                        if (at[0] + 4 > json.length()) throw new IOException("Bad unicode escape in json line: " + json);
+                        str.append((char) Integer.parseInt(json.substring(at[0], at[0] + 4), 16));
+                        at[0] += 4;
+                    }
+                    default -> str.append(escaped);
+                }
+            }
+            throw new IOException("Unterminated string in json line: " + json);
+        }
+
+        private static void expect(String json, int[] at, char expected) throws IOException {
+            if (at[0] >= json.length() || json.charAt(at[0]) != expected) {
+                throw new IOException("Expected '" + expected + "' at position " + at[0] + " of json line: " + json);
+            }
+            at[0]++;
+        }
+
+        private static int skipWhitespace(String json, int at) {
+            while (at < json.length() && Character.isWhitespace(json.charAt(at))) at++;
+            return at;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (reader != null) reader.close();
+        }
+    }
+
+    /**
+     * Reads records from csv (or tab separated) text one at a time. Quoted fields can hold 
+     * delimiters, doubled quotes and line breaks. Unquoted empty fields come back as null, 
+     * matching how COPY reads them.
+     */
+    public static class CsvReader {
+        private Reader reader;
+        private char delimiter;
+        private int peeked = -2;
+
+        public CsvReader(Reader reader, char delimiter) {
+            this.reader = reader;
+            this.delimiter = delimiter;
+        }
+
+        /**
+         * Returns the next record, or null at the end of the input
+         */
+        public List<String> readRecord() throws IOException {
+            int c = read();
+            if (c == -1) return null;
+
+            List<String> record = new ArrayList<>();
+            StringBuilder field = new StringBuilder();
+            boolean quoted = false;
+            boolean wasQuoted = false;
+            while (true) {
+                if (quoted) {
+                    if (c == -1) throw new IOException("Unterminated quoted field");
+                    if (c == '"') {
+                        if (peek() == '"') {
+                            read();
+                            field.append('"');
+                        }
+                        else {
+                            quoted = false;
+                        }
+                    }
+                    else {
+                        field.append((char) c);
+                    }
+                }
+                else if (c == '"') {
+                    quoted = true;
+                    wasQuoted = true;
+                }
+                else if (c == delimiter || c == '\n' || c == '\r' || c == -1) {
+                    record.add(field.length() == 0 && !wasQuoted ? null : field.toString());
+                    field.setLength(0);
+                    wasQuoted = false;
+
+                    if (c != delimiter) {
+                        if (c == '\r' && peek() == '\n') read();
+                        return record;
+                    }
+                }
+                else {
+                    field.append((char) c);
+                }
+                c = read();
+            }
+        }
+
+        private int read() throws IOException {
+            if (peeked != -2) {
+                int c = peeked;
+                peeked = -2;
+                return c;
+            }
+            return reader.read();
+        }
+
+        private int peek() throws IOException {
+            if (peeked == -2) peeked = reader.read();
+            return peeked;
+        }
+    }
+
+    /**
+     * Writes query results out as csv, tsv or json lines instead of pretty printing them. Plain 
+     * queries go through COPY ... TO STDOUT, so the server does the encoding and the bytes are 
+     * passed straight through to the output. Anything COPY can't run falls back to encoding the 
+     * rows here while streaming them through a cursor.
+     */
+    public static class Exporter {
+
+        public static void exportScript(Connection connection, List<String> statements, RunOptions options) throws SQLException {
+            try (OutputStream out = openExportOutput(options)) {
+                for (String sql : statements) {
+                    long start = System.nanoTime();
+
+                    if (isCopyable(sql)) {
+                        long rows = exportQuery(connection, sql, options, out);
+                        printExportSummary(rows + (rows == 1 ? " row" : " rows") + " exported", start);
+                    }
+                    else {
+                        try (Statement statement = connection.createStatement()) {
+                            statement.setFetchSize(options.fetchSize);
+                            boolean isResultSet = statement.execute(sql);
+                            while (true) {
+                                if (isResultSet) {
+                                    try (ResultSet resultSet = statement.getResultSet()) {
+                                        long rows = encodeRows(resultSet, options.exportFormat, out);
+                                        printExportSummary(rows + (rows == 1 ? " row" : " rows") + " exported", start);
+                                    }
+                                }
+                                else {
+                                    int updateCount = statement.getUpdateCount();
+                                    if (updateCount == -1) break;
+                                    printExportSummary(updateCount + (updateCount == 1 ? " row" : " rows") + " affected", start);
+                                }
+                                start = System.nanoTime();
+                                isResultSet = statement.getMoreResults();
+                            }
+                        }
+                    }
+                }
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private static OutputStream openExportOutput(RunOptions options) throws IOException {
+            if (options.exportFile != null) {
+                return new BufferedOutputStream(Files.newOutputStream(options.exportFile), 1 << 16);
+            }
+
+            // don't close stdout when the export is done
+            return new BufferedOutputStream(System.out, 1 << 16) {
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            };
+        }
+
+        /**
+         * The summary goes to stderr so stdout only ever holds the exported data
+         */
+        private static void printExportSummary(String summary, long startNanos) {
+            long millis = (System.nanoTime() - startNanos) / 1_000_000;
+            System.err.println("(" + summary + ", " + millis + " ms)");
+        }
+
+        /**
+         * COPY can only wrap plain queries
+         */
+        public static boolean isCopyable(String sql) {
+            String code = sql.lines()
+                .filter(line -> !line.trim().startsWith("--"))
+                .collect(Collectors.joining("\n"))
+                .trim()
+                .toLowerCase();
+            return isReadOnly(sql) && !code.startsWith("show");
+        }
+
+        private static long exportQuery(Connection connection, String sql, RunOptions options, OutputStream out) throws SQLException, IOException {
+            if (connection.isWrapperFor(PGConnection.class)) {
+                String copySql = switch (options.exportFormat) {
+                    case csv -> "COPY (" + sql + "\n) TO STDOUT WITH (FORMAT csv, HEADER true)";
+                    case tsv -> "COPY (" + sql + "\n) TO STDOUT WITH (FORMAT csv, HEADER true, DELIMITER E'\\t')";
+                    // row_to_json copies json columns in as they were written, line breaks and all. 
+                    // Outside of those it never writes raw control characters, and json strings 
+                    // can't hold them either, so the line breaks are only whitespace that can go. 
+                    // With these as the quote and delimiter csv mode then passes every line through.
+                    case jsonl -> "COPY (SELECT translate(row_to_json(dbdo_row)::text, E'\\n\\r', '  ') FROM (" + sql + "\n) dbdo_row) " + 
+                        "TO STDOUT WITH (FORMAT csv, QUOTE E'\\x01', DELIMITER E'\\x02')";
+                };
+
+                // COPY can be refused (permissions, poolers, read only replicas of old versions), 
+                // so keep the transaction usable for the fallback
+                Savepoint savepoint = connection.getAutoCommit() ? null : connection.setSavepoint();
+                long[] written = {0};
+                OutputStream counted = new FilterOutputStream(out) {
+                    @Override
+                    public void write(int b) throws IOException {
+                        out.write(b);
+                        written[0]++;
+                    }
+
+                    @Override
+                    public void write(byte[] bytes, int offset, int length) throws IOException {
+                        out.write(bytes, offset, length);
+                        written[0] += length;
+                    }
+                };
+                try {
+                    CopyManager copyManager = connection.unwrap(PGConnection.class).getCopyAPI();
+                    long rows = copyManager.copyOut(copySql, counted);
+                    if (savepoint != null) connection.releaseSavepoint(savepoint);
+                    return rows;
+                }
+                catch (SQLException e) {
+                    if (savepoint != null) connection.rollback(savepoint);
+                    // rows already written would come out twice
+                    if (written[0] > 0) throw e;
+                }
+            }
+
+            return readThroughCursor(connection, () -> {
+                try (Statement statement = connection.createStatement()) {
+                    statement.setFetchSize(options.fetchSize);
+                    try (ResultSet resultSet = statement.executeQuery(sql)) {
+                        return encodeRows(resultSet, options.exportFormat, out);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Encodes rows the same way the COPY path does, for results COPY can't produce
+         */
+        public static long encodeRows(ResultSet resultSet, ExportFormat format, OutputStream out) throws SQLException {
+            DecodePlan plan = new DecodePlan(resultSet.getMetaData(), null, 0, TypeRegistry.of(resultSet));
+            TerminalWriter writer = new TerminalWriter(out, 1 << 16);
+
+            // header
+            if (format != ExportFormat.jsonl) {
+                for (int i = 0; i < plan.columnCount; i++) {
+                    if (i > 0) writer.write(format == ExportFormat.csv ? (byte) ',' : (byte) '\t');
+                    writeDelimited(writer, plan.columnNames[i], format);
+                }
+                writer.newLine();
+            }
+
+            long rows = 0;
+            while (resultSet.next()) {
+                if (format == ExportFormat.jsonl) {
+                    writer.write((byte) '{');
+                    for (int i = 0; i < plan.columnCount; i++) {
+                        if (i > 0) writer.write((byte) ',');
+                        writeJsonString(writer, plan.columnNames[i]);
+                        writer.write((byte) ':');
+                        writeJsonValue(writer, resultSet.getString(i + 1), plan.types[i]);
+                    }
+                    writer.write((byte) '}');
+                }
+                else {
+                    for (int i = 0; i < plan.columnCount; i++) {
+                        if (i > 0) writer.write(format == ExportFormat.csv ? (byte) ',' : (byte) '\t');
+                        String value = resultSet.getString(i + 1);
+                        if (value != null) writeDelimited(writer, value, format);
+                    }
+                }
+                writer.newLine();
+                rows++;
+            }
+            writer.flush();
+            return rows;
+        }
+
+        private static void writeDelimited(TerminalWriter writer, String value, ExportFormat format) {
+            char delimiter = format == ExportFormat.csv ? ',' : '\t';
+            boolean needsQuotes = value.isEmpty();
+            for (int i = 0; i < value.length() && !needsQuotes; i++) {
+                char c = value.charAt(i);
+                needsQuotes = c == delimiter || c == '"' || c == '\n' || c == '\r';
+            }
+
+            if (!needsQuotes) {
+                writer.write(value);
+                return;
+            }
+            writer.write((byte) '"');
+            writer.write(value.replace("\"", "\"\""));
+            writer.write((byte) '"');
+        }
+
+        private static void writeJsonValue(TerminalWriter writer, String value, PostgresType type) {
+            if (value == null) {
+                writer.write("null");
+                return;
+            }
+            switch (type) {
+                case int2, int4, int8, serial, smallserial, bigserial, numeric -> writer.write(value);
+                // line breaks in json are only ever whitespace, as in the COPY path
+                case json, jsonb -> writer.write(value.replace('\n', ' ').replace('\r', ' '));
+                case float4, float8 -> {
+                    // NaN and Infinity aren't valid json numbers
+                    if (Character.isLetter(value.charAt(value.length() - 1))) writeJsonString(writer, value);
+                    else writer.write(value);
+                }
+                case bool -> writer.write("t".equals(value) || "true".equals(value) ? "true" : "false");
+                default -> writeJsonString(writer, value);
+            }
+        }
+
+        public static void writeJsonString(TerminalWriter writer, String value) {
+            writer.write((byte) '"');
+            int start = 0;
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\' || c < 0x20) {
+                    if (i > start) writer.write(value.substring(start, i));
+                    switch (c) {
+                        case '"' -> writer.write("\\\"");
+                        case '\\' -> writer.write("\\\\");
+                        case '\n' -> writer.write("\\n");
+                        case '\r' -> writer.write("\\r");
+                        case '\t' -> writer.write("\\t");
+                        default -> writer.write(String.format("\\u%04x", (int) c));
+                    }
+                    start = i + 1;
+                }
+            }
+            if (start < value.length()) writer.write(start == 0 ? value : value.substring(start));
+            writer.write((byte) '"');
+        }
+    }
+
+    /**
+     * A fixed number of read only connections to one database, opened as they're first needed
+     */
+    public static class ConnectionPool implements AutoCloseable {
+        private String url;
+        private String username;
+        private String password;
+        private int maxSize;
+
+        private int opened = 0;
+        private List<Connection> all = new ArrayList<>();
+        private BlockingQueue<Connection> idle = new LinkedBlockingQueue<>();
+
+        public ConnectionPool(String url, String username, String password, int maxSize) {
+            this.url = url;
+            this.username = username;
+            this.password = password;
+            this.maxSize = maxSize;
+        }
+
+        /**
+         * Takes an idle connection, or opens a new one while there's room. Only the slot is 
+         * reserved under the lock, so logging in doesn't hold up the other threads.
+         */
+        public Connection acquire() throws SQLException, InterruptedException {
+            while (true) {
+                Connection connection = idle.poll();
+                if (connection != null) return connection;
+
+                boolean reserved;
+                synchronized (this) {
+                    reserved = opened < maxSize;
+                    if (reserved) opened++;
+                }
+                if (!reserved) {
+                    // a slot frees up if another thread fails to open its connection, so check back
+                    connection = idle.poll(50, TimeUnit.MILLISECONDS);
+                    if (connection != null) return connection;
+                    continue;
+                }
+
+                try {
+                    // through connect so an agent hands out its own and can cancel them
+                    connection = connect(url, username, password);
+                    connection.setReadOnly(true);
+                }
+                catch (SQLException e) {
+                    synchronized (this) {
+                        opened--;
+                    }
+                    if (connection != null) {
+                        try {
+                            connection.close();
+                        }
+                        catch (SQLException closeException) {
+                            // already failed
+                        }
+                    }
+                    throw e;
+                }
+                synchronized (this) {
+                    all.add(connection);
+                }
+                return connection;
+            }
+        }
+
+        public void release(Connection connection) {
+            idle.add(connection);
+        }
+
+        @Override
+        public synchronized void close() {
+            for (Connection connection : all) {
+                try {
+                    connection.close();
+                }
+                catch (SQLException e) {
+                    // nothing left to do with it
+                }
+            }
+            all.clear();
+            idle.clear();
+        }
+    }
+
+    /**
+     * A long running DbDo that takes runs from thin clients over a unix domain socket, so repeat 
+     * calls skip jvm startup, class loading, jit warmup and logging in to the database. Each run's 
+     * stdout and stderr are streamed back to the client as they're written. Connections are kept 
+     * per url and user, checked before reuse once they've sat idle for a while, and closed after 
+     * --agent-idle seconds unused. Runs are handled one at a time since they share System.out.
+     */
+    public static class Agent {
+
+        private static final int VERSION = 1;
+        public static final Path DEFAULT_SOCKET = Path.of(System.getProperty("user.home"), ".dbdo", "agent.sock");
+
+        // frames sent back to the client, each a kind byte, a length and that many bytes
+        private static final byte FRAME_DONE = 0;
+        private static final byte FRAME_OUT = 1;
+        private static final byte FRAME_ERR = 2;
+
+        /** connections idle for longer than this are checked with a round trip before reuse */
+        private static final long HEALTH_CHECK_AFTER_MILLIS = 5_000;
+
+        private static volatile boolean running = false;
+        private static long idleTimeoutMillis;
+        private static final Map<String, Deque<IdleConnection>> pools = new HashMap<>();
+
+        /** statements the current run has made, so they can be cancelled if its client leaves */
+        private static final Set<Statement> runStatements = ConcurrentHashMap.newKeySet();
+        private static volatile boolean runCancelled = false;
+
+        private static class IdleConnection {
+            Connection connection;
+            long idleSince = System.currentTimeMillis();
+
+            IdleConnection(Connection connection) {
+                this.connection = connection;
+            }
+        }
+
+        public static boolean isRunning() {
+            return running;
+        }
+
+        /**
+         * Serves runs on the socket until the process is killed
+         */
+        public static void serve(Path socket, long idleTimeoutSeconds) throws IOException {
+            idleTimeoutMillis = idleTimeoutSeconds * 1000;
+
+            // a socket file nobody answers on is left over from an agent that died
+            if (Files.exists(socket)) {
+                if (isListening(socket)) throw new IllegalStateException("An agent is already running on " + socket);
+                Files.delete(socket);
+            }
+
+            // runs carry passwords, so only this user may get at the socket
+            Path directory = socket.toAbsolutePath().getParent();
+            Files.createDirectories(directory, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+            if (socket.toAbsolutePath().equals(DEFAULT_SOCKET.toAbsolutePath())) {
+                Files.setPosixFilePermissions(directory, PosixFilePermissions.fromString("rwx------"));
+            }
+
+            ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "db-do-agent-reaper");
+                thread.setDaemon(true);
+                return thread;
+            });
+            reaper.scheduleWithFixedDelay(Agent::closeIdleConnections, 10, 10, TimeUnit.SECONDS);
+
+            try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+                // bound in a private directory and locked down before it's moved into place, so 
+                // there's no moment where anyone else could connect
+                Path staging = Files.createTempDirectory(directory, ".agent", PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+                try {
+                    Path staged = staging.resolve("agent.sock");
+                    server.bind(UnixDomainSocketAddress.of(staged));
+                    Files.setPosixFilePermissions(staged, PosixFilePermissions.fromString("rw-------"));
+                    Files.move(staged, socket, StandardCopyOption.ATOMIC_MOVE);
+                }
+                finally {
+                    Files.deleteIfExists(staging);
+                }
+                running = true;
+                System.err.println("DbDo agent listening on " + socket);
+
+                while (true) {
+                    try (SocketChannel client = server.accept()) {
+                        handle(client);
+                    }
+                    catch (IOException e) {
+                        // the client went away mid run, carry on with the next one
+                    }
+                }
+            }
+            finally {
+                running = false;
+                reaper.shutdownNow();
+                Files.deleteIfExists(socket);
+            }
+        }
+
+        private static boolean isListening(Path socket) {
+            try (SocketChannel existing = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+                return existing.isConnected();
+            }
+            catch (IOException e) {
+                return false;
+            }
+        }
+
+        private static void handle(SocketChannel client) throws IOException {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(client)));
+            DataOutputStream frames = new DataOutputStream(Channels.newOutputStream(client));
+
+            if (in.readInt() != VERSION) {
+                writeFrame(frames, FRAME_ERR, "Error: the client and agent are different versions of DbDo, restart the agent\n".getBytes(StandardCharsets.UTF_8));
+                writeFrame(frames, FRAME_DONE, new byte[0]);
+                return;
+            }
+            int width = in.readInt();
+            int height = in.readInt();
+            String[] args = new String[in.readInt()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = CatalogCache.readString(in);
+            }
+
+            // the client sends nothing more, so the stream ending means it quit or was killed, and 
+            // there's no point finishing its run while every other client waits
+            boolean[] finished = {false};
+            Thread watcher = new Thread(() -> {
+                // straight off the channel, the stream wrappers share a lock with the writes
+                ByteBuffer ignored = ByteBuffer.allocate(64);
+                try {
+                    while (client.read(ignored.clear()) != -1) {
+                        // nothing else is expected
+                    }
+                }
+                catch (IOException e) {
+                    // closed either way
+                }
+                synchronized (finished) {
+                    if (!finished[0]) cancelRun();
+                }
+            }, "db-do-agent-client");
+            watcher.setDaemon(true);
+            runCancelled = false;
+            runStatements.clear();
+            watcher.start();
+
+            PrintStream stdout = System.out;
+            PrintStream stderr = System.err;
+            PrintStream out = new PrintStream(new BufferedOutputStream(new FrameOutputStream(frames, FRAME_OUT), 1 << 16), false, StandardCharsets.UTF_8);
+            PrintStream err = new PrintStream(new FrameOutputStream(frames, FRAME_ERR), true, StandardCharsets.UTF_8);
+            try {
+                System.setOut(out);
+                System.setErr(err);
+                // lay out cards for the client's terminal, not the agent's
+                synchronized (DbDo.class) {
+                    terminalWidth = width;
+                    terminalHeight = height;
+                }
+                main(args);
+            }
+            catch (RuntimeException e) {
+                err.println("Error: " + e);
+            }
+            finally {
+                TERMINAL.flush();
+                out.flush();
+                System.setOut(stdout);
+                System.setErr(stderr);
+                synchronized (finished) {
+                    finished[0] = true;
+                }
+                runStatements.clear();
+            }
+            if (runCancelled) throw new IOException("The client went away");
+            writeFrame(frames, FRAME_DONE, new byte[0]);
+        }
+
+        /**
+         * Cancels whatever the current run has running on the server, and fails any statement 
+         * it tries to start after this
+         */
+        private static void cancelRun() {
+            runCancelled = true;
+            for (Statement statement : runStatements) {
+                try {
+                    statement.cancel();
+                }
+                catch (SQLException e) {
+                    // already done or closed
+                }
+            }
+        }
+
+        private static void writeFrame(DataOutputStream frames, byte kind, byte[] bytes) throws IOException {
+            synchronized (frames) {
+                frames.writeByte(kind);
+                frames.writeInt(bytes.length);
+                frames.write(bytes);
+                frames.flush();
+            }
+        }
+
+        private static class FrameOutputStream extends OutputStream {
+            private DataOutputStream frames;
+            private byte kind;
+
+            FrameOutputStream(DataOutputStream frames, byte kind) {
+                this.frames = frames;
+                this.kind = kind;
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{ (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                if (length == 0) return;
+                try {
+                    writeFrame(frames, kind, Arrays.copyOfRange(bytes, offset, offset + length));
+                }
+                catch (IOException e) {
+                    // PrintStream swallows this, so stop the run here
+                    cancelRun();
+                    throw e;
+                }
+            }
+        }
+
+        /**
+         * Sends the run to the agent on the socket and prints what comes back, returning false 
+         * without doing anything if no agent is listening
+         */
+        public static boolean forward(Path socket, String[] args) throws IOException {
+            SocketChannel channel;
+            try {
+                channel = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+            }
+            catch (IOException e) {
+                return false;
+            }
+
+            try (channel) {
+                DataOutputStream request = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+                request.writeInt(VERSION);
+                request.writeInt(getTerminalWidth());
+                request.writeInt(getTerminalHeight() + 1);
+                request.writeInt(args.length);
+                for (int i = 0; i < args.length; i++) {
+                    CatalogCache.writeString(request, resolvePath(args, i));
+                }
+                request.flush();
+
+                DataInputStream frames = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+                while (true) {
+                    byte kind = frames.readByte();
+                    byte[] bytes = frames.readNBytes(frames.readInt());
+                    if (kind == FRAME_DONE) break;
+
+                    PrintStream target = kind == FRAME_ERR ? System.err : System.out;
+                    target.write(bytes);
+                    target.flush();
+                }
+            }
+            return true;
+        }
+
+        /**
+         * The agent runs in its own working directory, so file args are made absolute first
+         */
+        private static String resolvePath(String[] args, int index) {
+            String arg = args[index];
+            if (index > 0 && args[index - 1].equals("-s")) {
+                return Path.of(arg).toAbsolutePath().toString();
+            }
+            for (String flag : List.of("--import=", "--out=", "--params=")) {
+                if (arg.startsWith(flag)) {
+                    return flag + Path.of(arg.substring(flag.length())).toAbsolutePath();
+                }
+            }
+            return arg;
+        }
+
+        /**
+         * Hands out a pooled connection for the url and user, or a new one if none are idle. 
+         * Closing it puts it back in the pool instead.
+         */
+        public static Connection connect(String url, String username, String password) throws SQLException {
+            // the password is part of the key so a wrong one can't borrow a logged in connection
+            String key = sha256(url + "\n" + username + "\n" + password);
+
+            while (true) {
+                IdleConnection idle;
+                synchronized (pools) {
+                    Deque<IdleConnection> pool = pools.get(key);
+                    idle = pool != null ? pool.pollFirst() : null;
+                }
+                if (idle == null) break;
+
+                long idleMillis = System.currentTimeMillis() - idle.idleSince;
+                if (idleMillis < HEALTH_CHECK_AFTER_MILLIS || isConnectionValid(idle.connection)) {
+                    return pooled(key, idle.connection);
+                }
+                closeQuietly(idle.connection);
+            }
+            return pooled(key, DriverManager.getConnection(url, username, password));
+        }
+
+        private static Connection pooled(String key, Connection connection) {
+            boolean[] closed = {false};
+            return (Connection) Proxy.newProxyInstance(
+                DbDo.class.getClassLoader(),
+                new Class<?>[]{ Connection.class },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "close":
+                            if (!closed[0]) {
+                                closed[0] = true;
+                                release(key, connection);
+                            }
+                            return null;
+                        case "isClosed":
+                            if (closed[0]) return true;
+                            break;
+                        default:
+                            if (closed[0]) throw new SQLException("Connection is closed");
+                    }
+                    boolean createsStatement = method.getName().equals("createStatement") || 
+                        method.getName().equals("prepareStatement") || 
+                        method.getName().equals("prepareCall");
+                    if (createsStatement && runCancelled) throw new SQLException("The client went away, run cancelled");
+                    try {
+                        Object result = method.invoke(connection, args);
+                        if (createsStatement) runStatements.add((Statement) result);
+                        return result;
+                    }
+                    catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                }
+            );
+        }
+
+        /**
+         * Puts the connection back the way a fresh one would be, dropping it if that fails
+         */
+        private static void release(String key, Connection connection) {
+            try {
+                if (connection.isClosed()) return;
+                if (!connection.getAutoCommit()) {
+                    connection.rollback();
+                    connection.setAutoCommit(true);
+                }
+                if (connection.isReadOnly()) connection.setReadOnly(false);
+
+                // settings, temp tables and prepared statements from the script don't carry over
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("DISCARD ALL");
+                }
+            }
+            catch (SQLException e) {
+                closeQuietly(connection);
+                return;
+            }
+
+            synchronized (pools) {
+                pools.computeIfAbsent(key, k -> new ArrayDeque<>()).addFirst(new IdleConnection(connection));
+            }
+        }
+
+        private static void closeIdleConnections() {
+            List<Connection> expired = new ArrayList<>();
+            long now = System.currentTimeMillis();
+            synchronized (pools) {
+                for (Deque<IdleConnection> pool : pools.values()) {
+                    // least recently used are at the back
+                    while (!pool.isEmpty() && now - pool.peekLast().idleSince > idleTimeoutMillis) {
+                        expired.add(pool.pollLast().connection);
+                    }
+                }
+            }
+            for (Connection connection : expired) {
+                closeQuietly(connection);
+            }
+        }
+
+        private static void closeQuietly(Connection connection) {
+            try {
+                connection.close();
+            }
+            catch (SQLException e) {
+                // already broken
+            }
+        }
+    }
+
+    public static class ArgParser {
+
+        public static class HelpException extends RuntimeException {}
+
+        public String[] args;
+        public Map<String, String> shortFlags;
+        public Map<String, String> longFlags;
+        public Map<String, String> booleanFlags;
+        public Map<String, String> helpFlags;
+        public String appName;
+        public String appDescription;
+        public String notes;
+        public boolean showManOnNoArgs;
+    
+        public ArgParser(
+            String[] args, 
+            Map<String, String> shortFlags, 
+            Map<String, String> longFlags, 
+            Map<String, String> booleanFlags, 
+            Map<String, String> helpFlags, 
+            String appName, 
+            String appDescription, 
+            String notes,
+            boolean showManOnNoArgs
+        )
+        {
+            this.args = args;
+            this.shortFlags = shortFlags;
+            this.longFlags = longFlags;
+            this.booleanFlags = booleanFlags;
+            this.helpFlags = helpFlags;
+            this.appName = appName;
+            this.appDescription = appDescription;
+            this.notes = notes;
+            this.showManOnNoArgs = showManOnNoArgs;
+        }
+
+        private Map<String, String> parseArgs() {
+            
+            try {
+
+                if (showManOnNoArgs && args.length == 0) throw new HelpException();
+    
+                Map<String, String> parsedArgs = new HashMap<>();
+                for (int i = 0; i < args.length; i++) {
+                    String arg = args[i];
+                    
+                    // short flags
+                    if (shortFlags.containsKey(arg)) {
+                        i++;
+                        String nextValue = args[i];
+                        parsedArgs.put(arg, nextValue);
+                    }
+                    // boolean flags
+                    else if (booleanFlags.containsKey(arg)) {
+                        parsedArgs.put(arg, "");
+                    }
+                    // long flags
+                    else if(arg.contains("=")) {
+                        String[] longArg = arg.split("=", 2);
+                        parsedArgs.put(longArg[0], longArg[1]);
+                    }
+                    else {
+    
+                        if (!helpFlags.containsKey(arg)) {
+                            throw new IllegalArgumentException(arg + " is not a recognized argument");
+                        }
+                        else {
+                            throw new HelpException();
+                        }
+    
+                    }
+                }
+    
+                return parsedArgs;
+            }
+            catch(Exception e) {
+                printMan();
+    
+                if (e instanceof HelpException) {
+                    throw e;
+                }
+                else {
+                    if (e instanceof IllegalArgumentException) throw e;
+        
+                    throw new IllegalArgumentException("Error parsing args!");
+
+                }
+            }
+            
+    
+        }
+        
+        private void printMan() {
+            System.out.println(appName);
+            System.out.println();
+            System.out.println(appDescription);
+            System.out.println();
+            System.out.println("Args");
+            Map<String, String> allFlags = new LinkedHashMap<>();
+            if (booleanFlags != null) allFlags.putAll(booleanFlags);
+            if (shortFlags != null) allFlags.putAll(shortFlags);
+            if (longFlags != null) allFlags.putAll(longFlags);
+            if (helpFlags != null) allFlags.putAll(helpFlags);
+            int longestFlagName = allFlags.entrySet().stream()
+                .mapToInt(entry -> entry.getKey().length())
+                .max()
+                .orElse(0);
+            for (Entry<String, String> entry : allFlags.entrySet()) {
+                String description = "   " + entry.getKey() + " ".repeat(longestFlagName - entry.getKey().length()) + " " + entry.getValue();
+                System.out.println(description);
+                System.out.println();
+            }
+
+            System.out.println(notes);
+        }
+    }
+
+    /**
+     * Column names, types and getters for a result set, resolved once from the metadata so 
+     * decoding a cell is just an array lookup instead of a metadata call and an enum parse
+     */
+    public static class DecodePlan {
+        public int columnCount;
+        public String[] columnNames;
+        public PostgresType[] types;
+        public ColumnGetter[] getters;
+
+        /** 1 based result set column holding each value */
+        public int[] valueColumns;
+        /** 1 based result set column holding each value's full size from the server, or 0 */
+        public int[] lengthColumns;
+        /** longest value to print, 0 for no limit */
+        public int maxValue;
+
+        public DecodePlan(ResultSetMetaData metaData) throws SQLException {
+            this(metaData, null, 0, null);
+        }
+
+        /**
+         * @param rewrite how the query was rewritten to cut values short, or null if it wasn't
+         * @param maxValue longest value to print, 0 for no limit
+         * @param registry the connection's types, or null to only know the built in ones
+         */
+        public DecodePlan(ResultSetMetaData metaData, ValueRewrite rewrite, int maxValue, TypeRegistry registry) throws SQLException {
+            this.columnCount = rewrite != null ? rewrite.types.length : metaData.getColumnCount();
+            this.columnNames = new String[columnCount];
+            this.types = new PostgresType[columnCount];
+            this.getters = new ColumnGetter[columnCount];
+            this.valueColumns = new int[columnCount];
+            this.lengthColumns = new int[columnCount];
+            this.maxValue = maxValue;
+
+            int resultColumn = 1;
+            for (int i = 0; i < columnCount; i++) {
+                valueColumns[i] = resultColumn++;
+                columnNames[i] = metaData.getColumnName(valueColumns[i]);
+
+                // the rewritten column may be text now, keep the original type for colors and getters
+                ColumnType type = rewrite != null ? rewrite.types[i] : getColumnType(metaData, valueColumns[i], registry);
+                types[i] = type.type;
+                if (rewrite != null && rewrite.hasLength[i]) lengthColumns[i] = resultColumn++;
+
+                // arrays the server already turned into text are read as text
+                getters[i] = type.array && lengthColumns[i] == 0 ? ARRAY_GETTER : getColumnGetter(type.type);
+            }
+        }
+
+        public int getLabelWidth() {
+            int width = 0;
+            for (String name : columnNames) {
+                width = Math.max(width, name.length());
+            }
+            return width;
+        }
+
+        /**
+         * Decodes the value of the 0 based 'column' in the current row
+         */
+        public Object getValue(ResultSet resultSet, int column) throws SQLException {
+            Object value = getters[column].get(resultSet, valueColumns[column]);
+
+            // primitive getters return 0 or false for sql nulls
+            return resultSet.wasNull() ? null : value;
+        }
+
+        /**
+         * Decodes the value of the 0 based 'column' in the current row into the text to print, 
+         * cutting big values short and noting how big they really are
+         */
+        public String getDisplayValue(ResultSet resultSet, int column) throws SQLException {
+            Object value = getValue(resultSet, column);
+            if (value == null) return null;
+
+            long fullLength = lengthColumns[column] > 0 ? resultSet.getLong(lengthColumns[column]) : -1;
+            if (value instanceof byte[] bytes) {
+                return ValueRewrite.formatBinary(bytes, fullLength, maxValue);
+            }
+            return ValueRewrite.formatText(value.toString(), fullLength, maxValue);
+        }
+    }
+
+    /**
+     * The rows of one result kept column by column in groups of GROUP_SIZE rows. Whole number, 
+     * float8 and bool columns are kept as 8 byte values and everything else as the utf-8 text 
+     * that gets printed, with a bit per row marking nulls. Each finished group is packed into a 
+     * single buffer, and once those use up the heap budget the rest are written to a temporary 
+     * file and mapped back in, so a big result doesn't take the heap down with it.
+     */
+    public static class ResultStore implements AutoCloseable {
+
+        public static final int GROUP_SIZE = 4096;
+        /** size of each region of the spill file mapped at once */
+        public static final int SEGMENT_SIZE = 256 * 1024 * 1024;
+
+        private static final byte TEXT = 0;
+        private static final byte WHOLE = 1;
+        private static final byte FLOAT = 2;
+        private static final byte BOOL = 3;
+
+        private final DecodePlan plan;
+        private final byte[] kinds;
+        private final long heapBudget;
+        private long heapUsed;
+
+        /** finished groups, either on the heap or mapped from the spill file */
+        private final List<ByteBuffer> groups = new ArrayList<>();
+        private long rows;
+
+        // the group being filled
+        private final long[][] numbers;
+        private final ByteArrayOutputStream[] text;
+        private final int[][] textEnds;
+        private final long[][] nulls;
+        private int groupRows;
+
+        private FileChannel spill;
+        private long spillSize;
+        /** regions of the spill file mapped so far, the last one being filled */
+        private final List<MappedByteBuffer> segments = new ArrayList<>();
+
+        /**
+         * @param heapBudget most bytes of finished groups to keep on the heap
+         */
+        public ResultStore(DecodePlan plan, long heapBudget) {
+            this.plan = plan;
+            this.heapBudget = heapBudget;
+
+            int columns = plan.columnCount;
+            kinds = new byte[columns];
+            numbers = new long[columns][];
+            text = new ByteArrayOutputStream[columns];
+            textEnds = new int[columns][];
+            nulls = new long[columns][GROUP_SIZE / 64];
+            for (int i = 0; i < columns; i++) {
+                kinds[i] = getKind(plan, i);
+                if (kinds[i] == TEXT) {
+                    text[i] = new ByteArrayOutputStream();
+                    textEnds[i] = new int[GROUP_SIZE];
+                }
+                else {
+                    numbers[i] = new long[GROUP_SIZE];
+                }
+            }
+        }
+
+        private static byte getKind(DecodePlan plan, int column) {
+            // values the server cut short and arrays come back as text whatever their type
+            if (plan.lengthColumns[column] > 0 || plan.getters[column] == ARRAY_GETTER) return TEXT;
+
+            return switch (plan.types[column]) {
+                case int2, int4, int8, smallserial, serial, bigserial -> WHOLE;
+                case float8 -> FLOAT;
+                case bool -> BOOL;
+                default -> TEXT;
+            };
+        }
+
+        public long size() {
+            return rows;
+        }
+
+        /**
+         * Reads every remaining row of the result set into the store
+         */
+        public void readAll(ResultSet resultSet, Stats stats) throws SQLException, IOException {
+            long fetchStart = stats != null ? System.nanoTime() : 0;
+            while (resultSet.next()) {
+
+                // timed per row rather than per cell to keep the clock calls cheap
+                long decodeStart = 0;
+                if (stats != null) {
+                    decodeStart = System.nanoTime();
+                    stats.fetchNanos += decodeStart - fetchStart;
+                    if (stats.firstRowNanos == -1) stats.firstRowNanos = decodeStart - stats.startNanos;
+                }
+
+                add(resultSet, stats);
+
+                if (stats != null) {
+                    fetchStart = System.nanoTime();
+                    stats.decodeNanos += fetchStart - decodeStart;
+                    stats.rows++;
+                }
+            }
+            if (stats != null) stats.fetchNanos += System.nanoTime() - fetchStart;
+            if (groupRows > 0) seal();
+        }
+
+        private void add(ResultSet resultSet, Stats stats) throws SQLException, IOException {
+            int row = groupRows;
+            for (int i = 0; i < plan.columnCount; i++) {
+                if (kinds[i] == TEXT) {
+                    String value = plan.getDisplayValue(resultSet, i);
+                    if (value == null) {
+                        nulls[i][row / 64] |= 1L << row;
+                    }
+                    else {
+                        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                        text[i].write(bytes, 0, bytes.length);
+                    }
+                    textEnds[i][row] = text[i].size();
+                    if (stats != null) stats.bytes += value == null ? 4 : value.length();
+                    continue;
+                }
+
+                Object value = plan.getValue(resultSet, i);
+                if (value == null) {
+                    nulls[i][row / 64] |= 1L << row;
+                }
+                else {
+                    numbers[i][row] = switch (kinds[i]) {
+                        case FLOAT -> Double.doubleToRawLongBits((Double) value);
+                        case BOOL -> (Boolean) value ? 1 : 0;
+                        default -> ((Number) value).longValue();
+                    };
+                }
+                if (stats != null) stats.bytes += value == null ? 4 : value.toString().length();
+            }
+
+            rows++;
+            if (++groupRows == GROUP_SIZE) seal();
+        }
+
+        /**
+         * Packs the group being filled into one buffer laid out as its row count, the offset of 
+         * each column, then per column the null bits followed by either the 8 byte values or 
+         * the end offset of each text value and the text itself
+         */
+        private void seal() throws IOException {
+            int columns = plan.columnCount;
+            int nullWords = (groupRows + 63) / 64;
+
+            int[] offsets = new int[columns];
+            int size = 4 + 4 * columns;
+            for (int i = 0; i < columns; i++) {
+                offsets[i] = size;
+                size += 8 * nullWords + (kinds[i] == TEXT ? 4 * groupRows + text[i].size() : 8 * groupRows);
+            }
+
+            ByteBuffer group = ByteBuffer.allocate(size);
+            group.putInt(groupRows);
+            for (int offset : offsets) group.putInt(offset);
+            for (int i = 0; i < columns; i++) {
+                for (int word = 0; word < nullWords; word++) group.putLong(nulls[i][word]);
+                Arrays.fill(nulls[i], 0);
+
+                if (kinds[i] == TEXT) {
+                    for (int row = 0; row < groupRows; row++) group.putInt(textEnds[i][row]);
+                    group.put(text[i].toByteArray());
+                    text[i].reset();
+                }
+                else {
+                    for (int row = 0; row < groupRows; row++) group.putLong(numbers[i][row]);
+                }
+            }
+            group.flip();
+
+            if (heapUsed + size <= heapBudget) {
+                groups.add(group);
+                heapUsed += size;
+            }
+            else {
+                groups.add(spill(group));
+            }
+            groupRows = 0;
+        }
+
+        /**
+         * Copies the group into the spill file through a mapped region of SEGMENT_SIZE, mapping 
+         * the next region once this one is full, so even a big spill only takes a few mappings. 
+         * The page cache decides how much of the file stays in memory.
+         */
+        private ByteBuffer spill(ByteBuffer group) throws IOException {
+            if (spill == null) {
+                Path file = Files.createTempFile("dbdo-rows", ".bin");
+                spill = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+            }
+
+            // groups never straddle two regions, ones bigger than a region get one to themselves
+            int size = group.remaining();
+            MappedByteBuffer segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            if (segment == null || segment.remaining() < size) {
+                long length = Math.max(SEGMENT_SIZE, size);
+                segment = spill.map(FileChannel.MapMode.READ_WRITE, spillSize, length);
+                spillSize += length;
+                segments.add(segment);
+            }
+
+            ByteBuffer stored = segment.slice(segment.position(), size);
+            segment.put(group);
+            return stored;
+        }
+
+        /**
+         * The text to print for the 0 based 'column' of the 0 based 'row', or null for sql nulls
+         */
+        public String getValue(long row, int column) {
+            ByteBuffer group = groups.get((int) (row / GROUP_SIZE));
+            int index = (int) (row % GROUP_SIZE);
+            int count = group.getInt(0);
+            int offset = group.getInt(4 + 4 * column);
+
+            if ((group.getLong(offset + 8 * (index / 64)) & (1L << index)) != 0) return null;
+
+            int values = offset + 8 * ((count + 63) / 64);
+            String value = switch (kinds[column]) {
+                case TEXT -> {
+                    int start = index == 0 ? 0 : group.getInt(values + 4 * (index - 1));
+                    int end = group.getInt(values + 4 * index);
+                    byte[] bytes = new byte[end - start];
+                    group.get(values + 4 * count + start, bytes);
+                    yield new String(bytes, StandardCharsets.UTF_8);
+                }
+                case FLOAT -> Double.toString(Double.longBitsToDouble(group.getLong(values + 8 * index)));
+                case BOOL -> Boolean.toString(group.getLong(values + 8 * index) != 0);
+                default -> Long.toString(group.getLong(values + 8 * index));
+            };
+            // text was already cut short when it was read
+            return kinds[column] == TEXT ? value : ValueRewrite.formatText(value, -1, plan.maxValue);
+        }
+
+        /**
+         * Rows 'from' up to but not including 'to' as records to print
+         */
+        public List<List<Record>> toRecords(long from, long to) {
+            List<List<Record>> allRecords = new ArrayList<>((int) (to - from));
+            for (long row = from; row < to; row++) {
+                List<Record> records = new ArrayList<>(plan.columnCount);
+                for (int i = 0; i < plan.columnCount; i++) {
+                    String value = getValue(row, i);
+                    records.add(new Record(plan.types[i], plan.columnNames[i], value == null ? "null" : value));
+                }
+                allRecords.add(records);
+            }
+            return allRecords;
+        }
+
+        @Override
+        public void close() throws IOException {
+            groups.clear();
+            for (MappedByteBuffer segment : segments) unmap(segment);
+            segments.clear();
+            if (spill != null) spill.close();
+        }
+
+        /**
+         * Releases a mapping now rather than whenever the buffer is collected. There's no public 
+         * api for it, so this goes through Unsafe and leaves it to the collector if that's missing.
+         */
+        private static void unmap(MappedByteBuffer buffer) {
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Field field = unsafeClass.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(field.get(null), buffer);
+            }
+            catch (ReflectiveOperationException e) {
+                // unmapped once it's collected
+            }
+        }
+    }
+
+    /**
+     * A plain query wrapped so the server cuts large text, json, xml and bytea values short and 
+     * sends their full size alongside, instead of sending values that are far too big to print
+     */
+    public static class ValueRewrite {
+
+        public String sql;
+        /** types of the original query's columns */
+        public ColumnType[] types;
+        /** whether each original column is followed by a size column */
+        public boolean[] hasLength;
+
+        /**
+         * Describes the query (without running it) and wraps it, or returns null if none of its 
+         * columns can hold big values
+         */
+        public static ValueRewrite of(Connection connection, String sql, int maxValue) throws SQLException {
+            // described by running it for no rows through a plain statement, since a prepared one 
+            // would take jsonb operators like ? for placeholders. If that fails the query runs as 
+            // written, so it reports its own error. Inside a transaction the failure is rolled 
+            // back to a savepoint first so the transaction can carry on.
+            boolean inTransaction = !connection.getAutoCommit() || 
+                (connection.isWrapperFor(BaseConnection.class) && !isTransactionIdle(connection));
+            try (Statement statement = connection.createStatement()) {
+                if (inTransaction) statement.execute("SAVEPOINT dbdo_describe");
+                try (ResultSet resultSet = statement.executeQuery("SELECT * FROM (" + sql + "\n) AS dbdo_q LIMIT 0")) {
+                    ValueRewrite rewrite = of(connection, sql, resultSet.getMetaData(), maxValue);
+                    if (inTransaction) statement.execute("RELEASE SAVEPOINT dbdo_describe");
+                    return rewrite;
+                }
+                catch (SQLException e) {
+                    if (inTransaction) statement.execute("ROLLBACK TO SAVEPOINT dbdo_describe");
+                    return null;
+                }
+            }
+        }
+
+        /**
+         * Wraps the query using columns already described, which have to be the ones it returns
+         */
+        static ValueRewrite of(Connection connection, String sql, ResultSetMetaData metaData, int maxValue) throws SQLException {
+            int columnCount = metaData.getColumnCount();
+            ValueRewrite rewrite = new ValueRewrite();
+            rewrite.types = new ColumnType[columnCount];
+            rewrite.hasLength = new boolean[columnCount];
+            TypeRegistry registry = TypeRegistry.of(connection);
+
+            List<String> aliases = new ArrayList<>();
+            List<String> columns = new ArrayList<>();
+            boolean anyLarge = false;
+            for (int i = 0; i < columnCount; i++) {
+                ColumnType type = getColumnType(metaData, i + 1, registry);
+                rewrite.types[i] = type;
+
+                // positional aliases so duplicate column names in the query don't clash
+                String alias = "dbdo_c" + i;
+                aliases.add(alias);
+                String name = "\"" + metaData.getColumnName(i + 1).replace("\"", "\"\"") + "\"";
+
+                // arrays of any size come back as text
+                PostgresType rewriteAs = type.array ? PostgresType.text : type.type;
+                switch (rewriteAs) {
+                    case bytea -> {
+                        columns.add("substring(dbdo_q." + alias + " from 1 for " + binaryLimit(maxValue) + ") AS " + name);
+                        columns.add("octet_length(dbdo_q." + alias + ")");
+                        rewrite.hasLength[i] = true;
+                    }
+                    case text, varchar, bpchar, json, jsonb, xml, tsvector, tsquery, _text -> {
+                        columns.add("left(dbdo_q." + alias + "::text, " + maxValue + ") AS " + name);
+                        columns.add("octet_length(dbdo_q." + alias + "::text)");
+                        rewrite.hasLength[i] = true;
+                    }
+                    default -> columns.add("dbdo_q." + alias + " AS " + name);
+                }
+                anyLarge |= rewrite.hasLength[i];
+            }
+            if (!anyLarge) return null;
+
+            // on its own line so a trailing comment in the query can't swallow the closing paren
+            rewrite.sql = "SELECT " + String.join(", ", columns) + 
+                " FROM (" + sql + "\n) AS dbdo_q(" + String.join(", ", aliases) + ")";
+            return rewrite;
+        }
+
+        private static int binaryLimit(int maxValue) {
+            // two hex digits per byte
+            return Math.max(1, maxValue / 2);
+        }
+
+        /**
+         * @param fullLength size of the whole value in bytes if the server cut it short, otherwise -1
+         */
+        public static String formatText(String value, long fullLength, int maxValue) {
+            if (maxValue <= 0) return value;
+
+            if (fullLength == -1) {
+                if (value.length() <= maxValue) return value;
+                fullLength = value.getBytes(StandardCharsets.UTF_8).length;
+                value = value.substring(0, maxValue);
+            }
+            else if (value.length() < maxValue || fullLength <= value.length()) {
+                // left() can only have cut it if it came back at the limit
+                return value;
+            }
+            else if (fullLength <= value.getBytes(StandardCharsets.UTF_8).length) {
+                return value;
+            }
+
+            return value + "\u2026 (" + formatSize(fullLength) + ")";
+        }
+
+        /**
+         * Shows binary values as a hex preview like postgres does, with the full size when it's 
+         * been cut short
+         */
+        public static String formatBinary(byte[] bytes, long fullLength, int maxValue) {
+            int limit = maxValue > 0 ? Math.min(bytes.length, binaryLimit(maxValue)) : bytes.length;
+            if (fullLength == -1) fullLength = bytes.length;
+
+            String hex = "\\x" + HexFormat.of().formatHex(bytes, 0, limit);
+            if (fullLength <= limit) return hex;
+            return hex + "\u2026 (" + formatSize(fullLength) + ")";
+        }
+
+        public static String formatSize(long bytes) {
+            if (bytes < 1024) return bytes + (bytes == 1 ? " byte" : " bytes");
+            if (bytes < 1024 * 1024) return String.format("%.1f KB", bytes / 1024.0);
+            if (bytes < 1024L * 1024 * 1024) return String.format("%.1f MB", bytes / (1024.0 * 1024));
+            return String.format("%.1f GB", bytes / (1024.0 * 1024 * 1024));
+        }
+    }
+
+    @FunctionalInterface
+    public interface ColumnGetter {
+        Object get(ResultSet resultSet, int index) throws SQLException;
+    }
 
-        // pretty print out records
-        if (!allRecords.isEmpty()) {
+    static ColumnType getColumnType(ResultSetMetaData metaData, int index) throws SQLException {
+        return getColumnType(metaData, index, null);
+    }
 
-            // get biggest column name
-            int columnLabelLength = allRecords.stream()
-                .flatMap(recordList -> recordList.stream())
-                .mapToInt(record -> record.columnName.length())
-                .max()
-                .orElse(0);
+    /**
+     * Works out how to decode and color the column. Types that aren't built in are looked up in 
+     * the connection's registry, and anything still unknown is treated as text.
+     */
+    static ColumnType getColumnType(ResultSetMetaData metaData, int index, TypeRegistry registry) throws SQLException {
+        String columnType = metaData.getColumnTypeName(index);
+        return registry != null ? registry.resolve(columnType) : TypeRegistry.resolveBuiltin(columnType);
+    }
 
-            // add spacing to column names
-            Map<String, String> columnNamesWithSpacing = allRecords.stream()
-                .flatMap(recordList -> recordList.stream())
-                .collect(
-                    Collectors.toMap(
-                        record -> record.columnName, 
-                        record -> fitToLength(record.columnName, columnLabelLength),
-                        (existingValue, newValue) -> newValue // Merge function to handle duplicate keys
-                    )
-                );
+    /**
+     * What a column decodes and colors as. For arrays it's the element type.
+     */
+    public static class ColumnType {
+        public static final ColumnType TEXT = new ColumnType(PostgresType.text, false);
 
-            // get the biggest row
-            int biggestRow = allRecords.stream()
-                .mapToInt(records -> records.stream()
-                    .mapToInt(record -> columnNamesWithSpacing.get(record.columnName).length() + record.columnValue.length() + EXTRA_SPACE_BEFORE_VALUE)
-                    .max()
-                    .orElse(0)
-                )
-                .max()
-                .orElse(0);
+        public PostgresType type;
+        public boolean array;
 
-            // print out pretty
-            int width = getTerminalWidth();
-            int numColumns = width / biggestRow;
-            if (numColumns < 1) numColumns = 1;
-            int desiredLength = (width / numColumns);
-            int recordsPerColumn = (int) Math.ceil(allRecords.size() / (double) numColumns);
-
-            // sort into columns
-            List<List<List<Record>>> columns = new ArrayList<>();
-            int lastIndex = 0;
-            for (int x = 0; x < numColumns; x++) {
-                List<List<Record>> column = new ArrayList<>();
-                int nextIndex = recordsPerColumn + lastIndex;
-                if (nextIndex > allRecords.size()) nextIndex = allRecords.size();
-                columns.add(
-                    allRecords.subList(lastIndex, nextIndex)
-                );
-                lastIndex = nextIndex;
-            }
-            int y = 0;
-            while (y < recordsPerColumn) {
-                
-                System.out.println();
-                boolean finishedY = false;
-                int tableRow = 0;
-                while (!finishedY) {
-
-                    finishedY = true;
-                    for (int x = 0; x < numColumns; x++) {
-                        if (x < columns.size() && y < columns.get(x).size()) {
-                            List<Record> records = columns.get(x).get(y);
-
-                            if (tableRow < records.size()) {
-                                Record record = records.get(tableRow);
-                                String columnName = columnNamesWithSpacing.get(record.columnName);
-
-                                // determine whitespace
-                                int totalLength = columnName.length() + EXTRA_SPACE_BEFORE_VALUE +  record.columnValue.length();
-                                int neededWhitespace = desiredLength - totalLength;
-                                if (neededWhitespace < 0) neededWhitespace = 0;
-                                if (x == numColumns - 1) neededWhitespace = 0;
-
-                                // determine colors
-                                String columnNameColor = record.columnNameColorOverride != null ? record.columnNameColorOverride : AnsiControl.RESET.toString();
-                                String columnValueColor = record.columnValueColorOverride != null ? record.columnValueColorOverride : getColumnColor(record.type, record.columnValue);
-
-                                String value = columnNameColor + columnName + " ".repeat(EXTRA_SPACE_BEFORE_VALUE) + columnValueColor + record.columnValue + AnsiControl.RESET + " ".repeat(neededWhitespace);
-                                System.out.print(value);
-                                // int total = value.length();
-                                finishedY = false;
-                            }
-                            else {
-                                if (x != numColumns - 1)
-                                    System.out.print(" ".repeat(desiredLength));
+        public ColumnType(PostgresType type, boolean array) {
+            this.type = type;
+            this.array = array;
+        }
+    }
 
-                            }
-                        }
-                        else {
-                            System.out.print(" ".repeat(desiredLength));
-                        }
-                    }
-                    System.out.println();
-                    tableRow++;
-                }
-                y++;
-                System.out.println();
+    /**
+     * Reads an array element by element and prints it like postgres does, '{1,2,NULL}'
+     */
+    static final ColumnGetter ARRAY_GETTER = (resultSet, index) -> {
+        java.sql.Array array = resultSet.getArray(index);
+        if (array == null) return null;
+        try {
+            StringBuilder str = new StringBuilder();
+            appendArray(str, array.getArray());
+            return str.toString();
+        }
+        finally {
+            array.free();
+        }
+    };
 
+    private static void appendArray(StringBuilder str, Object array) {
+        str.append('{');
+        int length = java.lang.reflect.Array.getLength(array);
+        for (int i = 0; i < length; i++) {
+            if (i > 0) str.append(',');
+            Object element = java.lang.reflect.Array.get(array, i);
 
-            }
+            if (element == null) str.append("NULL");
+            // multidimensional arrays come back as arrays of arrays
+            else if (element.getClass().isArray() && !(element instanceof byte[])) appendArray(str, element);
+            else if (element instanceof byte[] bytes) str.append("\"\\\\x").append(HexFormat.of().formatHex(bytes)).append('"');
+            else if (element instanceof Boolean bool) str.append(bool ? 't' : 'f');
+            // java adds a '.0' to whole doubles and timestamps that postgres leaves off
+            else if (element instanceof Double || element instanceof Float) str.append(element.toString().replaceFirst("\\.0$", ""));
+            else if (element instanceof java.util.Date) appendArrayText(str, element.toString().replaceFirst("\\.0$", ""));
+            else if (element instanceof Number) str.append(element);
+            else appendArrayText(str, element.toString());
+        }
+        str.append('}');
+    }
 
+    private static void appendArrayText(StringBuilder str, String text) {
+        boolean quote = text.isEmpty() || text.equalsIgnoreCase("NULL");
+        for (int i = 0; i < text.length() && !quote; i++) {
+            char c = text.charAt(i);
+            quote = c == '{' || c == '}' || c == ',' || c == '"' || c == '\\' || Character.isWhitespace(c);
         }
-        else {
-            System.out.println();
-            System.out.println("NO RESULTS");
-            System.out.println();
+        if (!quote) {
+            str.append(text);
+            return;
+        }
+        str.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') str.append('\\');
+            str.append(c);
         }
+        str.append('"');
     }
 
-    public static void printSchemas(String url, String username, String password) {
+    /**
+     * Every type in a database's pg_type keyed by oid, so columns of array, domain, enum and 
+     * extension types decode and color like the type they're built from. It's loaded at most 
+     * once per connection, and only when a result has a type that isn't built in.
+     */
+    public static class TypeRegistry {
 
-        try {
-            
-            // Perform database operations here
-            Connection connection = DriverManager.getConnection(url, username, password);
+        private static final Map<Connection, TypeRegistry> REGISTRIES = Collections.synchronizedMap(new WeakHashMap<>());
 
-            Statement statement = connection.createStatement();
-            String sql = """
-                SELECT schema_name
-                FROM information_schema.schemata;
-            """;
-            statement.execute(sql);
-            ResultSet resultSet = statement.getResultSet();
+        public static class PgType {
+            public int oid;
+            public String name;
+            /** pg_type.typtype, 'b' base, 'd' domain, 'e' enum, 'c' composite, 'r' range... */
+            public char kind;
+            public char category;
+            public int elementOid;
+            public int baseOid;
+        }
 
-            if (resultSet != null) {
+        public Map<Integer, PgType> types = new HashMap<>();
+        /** oid of each type under every name the driver might report it as */
+        public Map<String, Integer> oids = new HashMap<>();
+        /** resolved types by name, filled in as columns are seen */
+        private Map<String, ColumnType> resolved = new HashMap<>();
 
-                // get schema names
-                List<String> schemaNames = new ArrayList<>();
-                while (resultSet.next()) {
-                    schemaNames.add(resultSet.getString(1));
-                }
-                schemaNames = schemaNames.stream()
-                    .filter(name -> !name.startsWith("pg_"))
-                    .filter(name -> !name.equals("information_schema"))
-                    .toList();
-
-                for (String schema : schemaNames) {
-                    System.out.println();
-                    System.out.println();
-                    System.out.println(AnsiControl.color(137, 49, 140) + "SCHEMA " + schema + AnsiControl.RESET);
-
-                    // get tables for the schema
-                    sql = """
-                        SELECT table_name
-                        FROM information_schema.tables
-                        WHERE table_schema = ?;
-                    """;
-                    PreparedStatement pStatement = connection.prepareStatement(sql);
-                    pStatement.setString(1, schema);
-                    resultSet = pStatement.executeQuery();
-                    List<String> tableNames = new ArrayList<>();
-                    while (resultSet.next()) {
-                        tableNames.add(resultSet.getString(1));
-                    }
+        private WeakReference<Connection> connection;
+        private boolean loaded;
 
-                    // print out table definitions
-                    List<List<Record>> allRecords = new ArrayList<>();
-                    for (String table : tableNames) {
+        /**
+         * The registry for the connection, or null if there isn't one to load types from
+         */
+        public static TypeRegistry of(Connection connection) {
+            if (connection == null) return null;
 
-                        List<Record> rows = new ArrayList<>();
-                        Record tableTitle = new Record(
-                            PostgresType.text,
-                            "TABLE " + schema + "." + table,
-                            ""
-                        );
-                        tableTitle.columnNameColorOverride = AnsiControl.color(51, 56, 189);
-                        rows.add(tableTitle);
-                        
-                        sql = """
-                            SELECT column_name, column_default, is_nullable, udt_name, character_maximum_length
-                            FROM information_schema.columns
-                            WHERE table_name = ?;
-                        """;
-                        pStatement = connection.prepareStatement(sql);
-                        pStatement.setString(1, table);
-                        resultSet = pStatement.executeQuery();
-                        while (resultSet.next()) {
-                            // get column info
-                            String type = resultSet.getString(4);
-                            String columnName = resultSet.getString(1);
-                            String columnValue = type;
-                            
-                            // set max length for varchars
-                            int maxLength = resultSet.getInt(5);
-                            if (maxLength > 0) {
-                                columnValue += "(" + maxLength + ")";
-                            }
+            // key on the driver's own connection, so pooled wrappers share one registry
+            Connection key = connection;
+            try {
+                if (connection.isWrapperFor(PGConnection.class)) key = connection.unwrap(PGConnection.class) instanceof Connection real ? real : connection;
+            }
+            catch (SQLException e) {
+                // not a postgres connection, use it as is
+            }
+            Connection owner = key;
+            return REGISTRIES.computeIfAbsent(key, k -> {
+                TypeRegistry registry = new TypeRegistry();
+                registry.connection = new WeakReference<>(owner);
+                return registry;
+            });
+        }
 
-                            // set nullable
-                            String defaultValue = resultSet.getString(2);
-                            boolean isNullable = resultSet.getString(3).equals("YES");
-                            if (isNullable) {
-                                columnValue += " NULL";
-                            }
-                            else {
-                                columnValue += " NOT NULL";
-                            }
+        public static TypeRegistry of(ResultSet resultSet) {
+            try {
+                Statement statement = resultSet.getStatement();
+                return statement != null ? of(statement.getConnection()) : null;
+            }
+            catch (SQLException e) {
+                return null;
+            }
+        }
 
-                            // set default value
-                            if (defaultValue != null) {
-                                columnValue += " DEFAULT " + defaultValue;
-                            }
+        /**
+         * Resolves built in types and arrays of them by name without touching the database, 
+         * falling back to text for anything else
+         */
+        public static ColumnType resolveBuiltin(String name) {
+            ColumnType type = builtin(name);
+            return type != null ? type : ColumnType.TEXT;
+        }
 
-                            // add commas
-                            columnValue += ",";
+        private static ColumnType builtin(String name) {
+            if (name == null) return null;
 
-                            Record column = new Record(
-                                PostgresType.valueOf(type),
-                                columnName,
-                                columnValue
-                            );
-                            rows.add(column);
-                        }
-                        
-                        allRecords.add(rows);
+            boolean array = false;
+            if (name.endsWith("[]")) {
+                name = name.substring(0, name.length() - 2);
+                array = true;
+            }
+            else if (name.startsWith("_") && BUILTIN_NAMES.containsKey(name.substring(1))) {
+                name = name.substring(1);
+                array = true;
+            }
+            PostgresType type = BUILTIN_NAMES.get(name);
+            return type != null ? new ColumnType(type, array) : null;
+        }
 
-                        System.out.println();
-                    }
+        private static final Map<String, PostgresType> BUILTIN_NAMES = new HashMap<>();
+        static {
+            for (PostgresType type : PostgresType.values()) {
+                BUILTIN_NAMES.put(type.name(), type);
+            }
+        }
+
+        public synchronized ColumnType resolve(String name) {
+            ColumnType type = resolved.get(name);
+            if (type != null) return type;
 
-                    prettyPrintRecords(allRecords);
+            type = builtin(name);
+            if (type == null) {
+                if (!loaded) load();
+                Integer oid = oids.get(name);
+                if (oid == null && name.endsWith("[]")) {
+                    // arrays of user types, such as 'mood[]'
+                    ColumnType element = resolve(name.substring(0, name.length() - 2));
+                    type = new ColumnType(element.type, true);
                 }
+                else {
+                    type = oid != null ? resolve(oid, 0) : ColumnType.TEXT;
+                }
+            }
+            resolved.put(name, type);
+            return type;
+        }
 
+        private ColumnType resolve(int oid, int depth) {
+            PgType type = types.get(oid);
+            // domains of domains can't loop, but don't trust that
+            if (type == null || depth > 16) return ColumnType.TEXT;
 
+            if (type.kind == 'd') return resolve(type.baseOid, depth + 1);
+            if (type.category == 'A' && type.elementOid != 0) {
+                return new ColumnType(resolve(type.elementOid, depth + 1).type, true);
             }
-            else {
-                System.out.println();
-                System.out.println("NO RESULTS");
-                System.out.println();
-            }
+            PostgresType builtin = BUILTIN_NAMES.get(type.name);
+            // enums, extension types like citext and hstore, composites and ranges all print as text
+            return builtin != null && type.kind == 'b' ? new ColumnType(builtin, false) : ColumnType.TEXT;
+        }
 
+        private void load() {
+            loaded = true;
+            Connection owner = connection.get();
+            if (owner == null) return;
 
-            connection.close(); // Close the connection when done
+            // row types of tables are left out, there's one per table and columns rarely use them
+            String sql = """
+                SELECT t.oid, t.typname, n.nspname, t.typtype, t.typcategory, t.typelem, t.typbasetype,
+                    pg_catalog.pg_type_is_visible(t.oid)
+                FROM pg_catalog.pg_type t
+                JOIN pg_catalog.pg_namespace n ON n.oid = t.typnamespace
+                LEFT JOIN pg_catalog.pg_class c ON c.oid = t.typrelid
+                WHERE c.oid IS NULL OR c.relkind = 'c'
+            """;
+            try (
+                Statement statement = owner.createStatement();
+                ResultSet resultSet = statement.executeQuery(sql)
+            ) {
+                while (resultSet.next()) {
+                    PgType type = new PgType();
+                    type.oid = (int) resultSet.getLong(1);
+                    type.name = resultSet.getString(2);
+                    String schema = resultSet.getString(3);
+                    type.kind = resultSet.getString(4).charAt(0);
+                    type.category = resultSet.getString(5).charAt(0);
+                    type.elementOid = (int) resultSet.getLong(6);
+                    type.baseOid = (int) resultSet.getLong(7);
+                    types.put(type.oid, type);
 
-        } catch (SQLException e) {
-            System.err.println("Error: " + e.getMessage());
+                    // the driver reports types outside the search path with their schema
+                    oids.put("\"" + schema + "\".\"" + type.name + "\"", type.oid);
+                    oids.put(schema + "." + type.name, type.oid);
+                    if (resultSet.getBoolean(8)) oids.put(type.name, type.oid);
+                    else oids.putIfAbsent(type.name, type.oid);
+                }
+            }
+            catch (SQLException e) {
+                // without the catalog every type that isn't built in prints as text
+                System.err.println("Couldn't load types, printing unknown types as text: " + e.getMessage());
+            }
         }
-        catch(ArgParser.HelpException e) {}
+    }
 
+    static ColumnGetter getColumnGetter(PostgresType type) {
+        return switch (type) {
+            case int8, bigserial -> ResultSet::getLong;
+            case varchar, bpchar, cidr, inet, json, jsonb, macaddr, macaddr8, text, tsquery, tsvector, uuid, xml, date, time, timetz, timestamp, timestamptz -> ResultSet::getString;
+            case bit, varbit -> ResultSet::getString;
+            case bool -> ResultSet::getBoolean;
+            case box, interval, line, lseg, circle, path, pg_lsn, point, polygon, txid_snapshot -> ResultSet::getObject;
+            case bytea -> ResultSet::getBytes;
+            case float8 -> ResultSet::getDouble;
+            case int4, int2, smallserial, serial -> ResultSet::getInt;
+            case money, numeric -> ResultSet::getBigDecimal;
+            case float4 -> ResultSet::getFloat;
+            default -> ResultSet::getString;
+        };
     }
 
-    public static class Record {
-        public PostgresType type;
-        public String columnName;
-        public String columnValue;
+    static String getColumnColor(PostgresType type, Object value) {
+        if (value == null || "null".equals(value)) return NULL_COLOR;
 
-        public String columnNameColorOverride;
-        public String columnValueColorOverride;
+        return COLUMN_COLORS[type.ordinal()];
+    }
 
-        public Record(DbDo.PostgresType type, String columnName, String columnValue) {
-            this.type = type;
-            this.columnName = columnName;
-            this.columnValue = columnValue;
+    private static final String NULL_COLOR = AnsiControl.color(38, 38, 38);
+    private static final String[] COLUMN_COLORS = new String[PostgresType.values().length];
+    static {
+        for (PostgresType type : PostgresType.values()) {
+            COLUMN_COLORS[type.ordinal()] = switch (type) {
+                case int8, bigserial, float8, money, numeric -> 
+                    AnsiControl.color(214, 75, 200);
+                case varchar, bpchar, cidr, inet, json, jsonb, macaddr, macaddr8, text, tsquery, tsvector, uuid, xml, name, _text -> 
+                    AnsiControl.color(75, 214, 84);
+                case date, time, timetz, timestamp, timestamptz -> 
+                    AnsiControl.color(214, 75, 75);
+                case bool -> 
+                    AnsiControl.color(33, 129, 219);
+                case int4, int2, smallserial, serial, float4 -> 
+                    AnsiControl.color(75, 193, 214);
+                default -> AnsiControl.color(194, 194, 194);
+            };
         }
-
-        
     }
 
-    public static class ArgParser {
+    private static final TerminalWriter TERMINAL = new TerminalWriter(null, 1 << 16);
 
-        public static class HelpException extends RuntimeException {}
+    /**
+     * Collects rendered output as bytes and hands it to the output stream in one write per flush, 
+     * instead of a print call and a concatenated string for every cell. Colors are encoded once 
+     * per type and padding is copied out of a shared blank buffer.
+     */
+    public static class TerminalWriter {
 
-        public String[] args;
-        public Map<String, String> shortFlags;
-        public Map<String, String> longFlags;
-        public Map<String, String> booleanFlags;
-        public Map<String, String> helpFlags;
-        public String appName;
-        public String appDescription;
-        public String notes;
-        public boolean showManOnNoArgs;
-    
-        public ArgParser(
-            String[] args, 
-            Map<String, String> shortFlags, 
-            Map<String, String> longFlags, 
-            Map<String, String> booleanFlags, 
-            Map<String, String> helpFlags, 
-            String appName, 
-            String appDescription, 
-            String notes,
-            boolean showManOnNoArgs
-        )
-        {
-            this.args = args;
-            this.shortFlags = shortFlags;
-            this.longFlags = longFlags;
-            this.booleanFlags = booleanFlags;
-            this.helpFlags = helpFlags;
-            this.appName = appName;
-            this.appDescription = appDescription;
-            this.notes = notes;
-            this.showManOnNoArgs = showManOnNoArgs;
+        public static final byte[] RESET = AnsiControl.RESET.toString().getBytes(StandardCharsets.UTF_8);
+        private static final byte[] NULL_COLOR_BYTES = NULL_COLOR.getBytes(StandardCharsets.UTF_8);
+        private static final byte[][] COLUMN_COLOR_BYTES = new byte[COLUMN_COLORS.length][];
+        static {
+            for (int i = 0; i < COLUMN_COLORS.length; i++) {
+                COLUMN_COLOR_BYTES[i] = COLUMN_COLORS[i].getBytes(StandardCharsets.UTF_8);
+            }
         }
+        private static final byte[] BLANKS = " ".repeat(512).getBytes(StandardCharsets.UTF_8);
 
-        private Map<String, String> parseArgs() {
-            
-            try {
+        private OutputStream out;
+        private byte[] buffer;
+        private int size;
 
-                if (showManOnNoArgs && args.length == 0) throw new HelpException();
-    
-                Map<String, String> parsedArgs = new HashMap<>();
-                for (int i = 0; i < args.length; i++) {
-                    String arg = args[i];
-                    
-                    // short flags
-                    if (shortFlags.containsKey(arg)) {
-                        i++;
-                        String nextValue = args[i];
-                        parsedArgs.put(arg, nextValue);
-                    }
-                    // boolean flags
-                    else if (booleanFlags.containsKey(arg)) {
-                        parsedArgs.put(arg, "");
-                    }
-                    // long flags
-                    else if(arg.contains("=")) {
-                        String[] longArg = arg.split("=");
-                        parsedArgs.put(longArg[0], longArg[1]);
-                    }
-                    else {
-    
-                        if (!helpFlags.containsKey(arg)) {
-                            throw new IllegalArgumentException(arg + " is not a recognized argument");
-                        }
-                        else {
-                            throw new HelpException();
-                        }
-    
-                    }
-                }
-    
-                return parsedArgs;
-            }
-            catch(Exception e) {
-                printMan();
-    
-                if (e instanceof HelpException) {
-                    throw e;
-                }
-                else {
-                    if (e instanceof IllegalArgumentException) throw e;
-        
-                    throw new IllegalArgumentException("Error parsing args!");
+        /**
+         * @param out stream to write to, or null to write to whatever System.out is at flush time
+         */
+        public TerminalWriter(OutputStream out, int capacity) {
+            this.out = out;
+            this.buffer = new byte[capacity];
+        }
+
+        public static byte[] getColumnColorBytes(PostgresType type, String value) {
+            if (value == null || "null".equals(value)) return NULL_COLOR_BYTES;
+
+            return COLUMN_COLOR_BYTES[type.ordinal()];
+        }
+
+        public void write(byte[] bytes) {
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buffer, size, bytes.length);
+            size += bytes.length;
+        }
+
+        public void write(String str) {
+            int length = str.length();
+            ensureCapacity(length);
 
+            // copy ascii straight into the buffer, only encoding strings that need it
+            int start = size;
+            for (int i = 0; i < length; i++) {
+                char c = str.charAt(i);
+                if (c >= 0x80) {
+                    size = start;
+                    write(str.getBytes(StandardCharsets.UTF_8));
+                    return;
                 }
+                buffer[size++] = (byte) c;
             }
-            
-    
         }
-        
-        private void printMan() {
-            System.out.println(appName);
-            System.out.println();
-            System.out.println(appDescription);
-            System.out.println();
-            System.out.println("Args");
-            Map<String, String> allFlags = new LinkedHashMap<>();
-            if (booleanFlags != null) allFlags.putAll(booleanFlags);
-            if (shortFlags != null) allFlags.putAll(shortFlags);
-            if (longFlags != null) allFlags.putAll(longFlags);
-            if (helpFlags != null) allFlags.putAll(helpFlags);
-            int longestFlagName = allFlags.entrySet().stream()
-                .mapToInt(entry -> entry.getKey().length())
-                .max()
-                .orElse(0);
-            for (Entry<String, String> entry : allFlags.entrySet()) {
-                String description = "   " + entry.getKey() + " ".repeat(longestFlagName - entry.getKey().length()) + " " + entry.getValue();
-                System.out.println(description);
-                System.out.println();
+
+        public void write(byte b) {
+            ensureCapacity(1);
+            buffer[size++] = b;
+        }
+
+        public void pad(int count) {
+            while (count > 0) {
+                int length = Math.min(count, BLANKS.length);
+                ensureCapacity(length);
+                System.arraycopy(BLANKS, 0, buffer, size, length);
+                size += length;
+                count -= length;
             }
+        }
 
-            System.out.println(notes);
+        public void println(String str) {
+            write(str);
+            newLine();
         }
-    }
 
-    private static PostgresType getColumnType(ResultSet resultSet, int index) throws SQLException {
-        ResultSetMetaData metaData = resultSet.getMetaData();
-        String columnType = metaData.getColumnTypeName(index);
-        PostgresType type = PostgresType.valueOf(columnType);
-        
-        return type;
-    }
+        public void newLine() {
+            ensureCapacity(1);
+            buffer[size++] = '\n';
+        }
 
-    private static Object getColumnValue(ResultSet resultSet, int index) throws SQLException {
-        PostgresType type = getColumnType(resultSet, index);
+        /**
+         * Writes out everything buffered so far and flushes the underlying stream
+         */
+        public void flush() {
+            drain();
+            try {
+                target().flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
 
-        return switch (type) {
-            case int8, bigserial -> resultSet.getLong(index);
-            case varchar, bpchar, cidr, inet, json, jsonb, macaddr, macaddr8, text, tsquery, tsvector, uuid, xml, date, time, timetz, timestamp, timestamptz -> resultSet.getString(index);
-            case bit -> resultSet.getArray(index);
-            case varbit -> resultSet.getBlob(index);
-            case bool -> resultSet.getBoolean(index);
-            case box, interval, line, lseg, circle, path, pg_lsn, point, polygon, txid_snapshot -> resultSet.getObject(index);
-            case bytea -> resultSet.getBytes(index);
-            case float8 -> resultSet.getDouble(index);
-            case int4, int2, smallserial, serial -> resultSet.getInt(index);
-            case money, numeric -> resultSet.getBigDecimal(index);
-            case float4 -> resultSet.getFloat(index);
-            default -> resultSet.getString(index);
-        };
-    }
+        private void ensureCapacity(int length) {
+            if (size + length > buffer.length) {
+                drain();
+                if (length > buffer.length) buffer = new byte[length];
+            }
+        }
 
-    private static String getColumnColor(PostgresType type, Object value) throws SQLException {
-        if (value == null || "null".equals(value)) return AnsiControl.color(38, 38, 38);
+        private void drain() {
+            if (size == 0) return;
+            try {
+                target().write(buffer, 0, size);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            size = 0;
+        }
 
-        return switch (type) {
-            case int8, bigserial, float8, money, numeric -> 
-                AnsiControl.color(214, 75, 200);
-            case varchar, bpchar, cidr, inet, json, jsonb, macaddr, macaddr8, text, tsquery, tsvector, uuid, xml, name, _text -> 
-                AnsiControl.color(75, 214, 84);
-            case date, time, timetz, timestamp, timestamptz -> 
-                AnsiControl.color(214, 75, 75);
-            case bool -> 
-                AnsiControl.color(33, 129, 219);
-            case int4, int2, smallserial, serial, float4 -> 
-                AnsiControl.color(75, 193, 214);
-            default -> AnsiControl.color(194, 194, 194);
-        };
+        private OutputStream target() {
+            return out != null ? out : System.out;
+        }
     }
 
     public enum PostgresType {
@@ -609,7 +6140,7 @@ class DbDo {
         _text;
     }
 
-    private static String fitToLength(String str, int length) {
+    static String fitToLength(String str, int length) {
         if (str.length() > length) {
             return str.substring(0, length);
         }
@@ -673,29 +6204,70 @@ class DbDo {
         }
     }
 
+    private static int terminalWidth = -1;
+    private static int terminalHeight = -1;
+
     public static int getTerminalWidth() {
-        int width = 80; // Default width
-        try {
-            Process process = new ProcessBuilder("sh", "-c", "tput cols 2> /dev/tty").start();
-            process.waitFor();
-            width = Integer.parseInt(new String(process.getInputStream().readAllBytes()).trim());
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        return width;
+        detectTerminalSize();
+        return terminalWidth;
     }
 
     public static int getTerminalHeight() {
-        int height = 24; // Default height
+        detectTerminalSize();
+        return terminalHeight - 1;
+    }
+
+    /**
+     * Works out the terminal size once per run. COLUMNS and LINES win when they're set, and runs 
+     * without a terminal (cron jobs, health checks, ci) use the defaults without spawning anything. 
+     * Otherwise a single 'stty size' reads both dimensions, since the jdk has no way to ask for 
+     * the window size itself.
+     */
+    private static synchronized void detectTerminalSize() {
+        if (terminalWidth != -1) return;
+
+        int width = parseSize(System.getenv("COLUMNS"));
+        int height = parseSize(System.getenv("LINES"));
+        if ((width == -1 || height == -1) && hasTerminal()) {
+            try {
+                Process process = new ProcessBuilder("stty", "size")
+                    .redirectInput(new File("/dev/tty"))
+                    .redirectError(ProcessBuilder.Redirect.DISCARD)
+                    .start();
+                String[] size = new String(process.getInputStream().readAllBytes()).trim().split("\\s+");
+                process.waitFor();
+                if (size.length == 2) {
+                    if (height == -1) height = parseSize(size[0]);
+                    if (width == -1) width = parseSize(size[1]);
+                }
+            } catch (IOException e) {
+                // no stty, fall back to the defaults
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        terminalWidth = width > 0 ? width : 80; // Default width
+        terminalHeight = height > 0 ? height : 24; // Default height
+    }
+
+    private static boolean hasTerminal() {
+        // opening /dev/tty fails when the process has no controlling terminal
         try {
-            Process process = new ProcessBuilder("sh", "-c", "tput lines 2> /dev/tty").start();
-            process.waitFor();
-            height = Integer.parseInt(new String(process.getInputStream().readAllBytes()).trim());
-        } catch (Exception e) {
-            e.printStackTrace();
+            new FileInputStream("/dev/tty").close();
+            return true;
+        } catch (IOException e) {
+            return false;
         }
-        return height - 1;
     }
 
+    private static int parseSize(String size) {
+        if (size == null) return -1;
+        try {
+            return Integer.parseInt(size.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
 
 }
@@ -0,0 +1,366 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.postgresql.core.BaseConnection;
+import org.postgresql.core.TransactionState;
+
+/**
+ * Runs the whole DbDo.main pipeline (arg parsing, script running, the row loop and rendering)
+ * against big synthetic result sets, and reports throughput, peak heap and gc activity for each
+ * scenario. Rows come from a fake jdbc driver registered under 'jdbc:synthetic:', so no postgres
+ * or docker is needed. Printed output is counted and thrown away.
+ *
+ * Run with 'sh loadtest.sh', naming scenarios to pick which ones run. Args starting with '-' are
+ * passed on to DbDo, for example 'sh loadtest.sh 10m wide --stream --max-value=0'
+ */
+public class LoadTest {
+
+    /** name to synthetic url, every query on the connection returns rows of this shape */
+    private static final Map<String, String> SCENARIOS = new LinkedHashMap<>();
+    static {
+        SCENARIOS.put("1m", "jdbc:synthetic:rows=1000000;columns=10;width=16");
+        SCENARIOS.put("10m", "jdbc:synthetic:rows=10000000;columns=10;width=16");
+        SCENARIOS.put("100m", "jdbc:synthetic:rows=100000000;columns=10;width=16");
+        SCENARIOS.put("wide", "jdbc:synthetic:rows=100000;columns=200;width=16");
+        SCENARIOS.put("big-values", "jdbc:synthetic:rows=100000;columns=10;width=4000");
+    }
+    private static final List<String> DEFAULT_SCENARIOS = List.of("1m", "wide", "big-values");
+
+    public static void main(String[] args) throws Exception {
+        DriverManager.registerDriver(new SyntheticDriver());
+
+        List<String> scenarios = new ArrayList<>();
+        List<String> dbDoArgs = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("-")) dbDoArgs.add(arg);
+            else if (SCENARIOS.containsKey(arg)) scenarios.add(arg);
+            else throw new IllegalArgumentException("Unknown scenario '" + arg + "', pick from " + SCENARIOS.keySet());
+        }
+        if (scenarios.isEmpty()) scenarios.addAll(DEFAULT_SCENARIOS);
+
+        Path script = Files.createTempFile("dbdo-load", ".sql");
+        Files.writeString(script, "SELECT * FROM synthetic;");
+
+        System.out.println(String.format(
+            "%-12s %12s %10s %14s %12s %12s %10s %10s",
+            "scenario", "rows", "seconds", "rows/sec", "printed MB", "peak heap MB", "gc count", "gc ms"
+        ));
+        try {
+            for (String scenario : scenarios) {
+                run(scenario, SCENARIOS.get(scenario), script, dbDoArgs);
+            }
+        }
+        finally {
+            Files.deleteIfExists(script);
+        }
+    }
+
+    private static void run(String name, String url, Path script, List<String> dbDoArgs) throws Exception {
+        List<String> args = new ArrayList<>(List.of("-d", url, "-u", "load", "-p", "load", "-s", script.toString()));
+        args.addAll(dbDoArgs);
+
+        // start each scenario from a clean heap so peaks aren't left over from the last one
+        System.gc();
+        List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                heapPools.add(pool);
+            }
+        }
+        long gcCount = 0;
+        long gcMillis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount -= collector.getCollectionCount();
+            gcMillis -= collector.getCollectionTime();
+        }
+
+        // DbDo prints through System.out, so swap in a stream that only counts bytes
+        PrintStream stdout = System.out;
+        CountingOutputStream printed = new CountingOutputStream();
+        long start = System.nanoTime();
+        try {
+            System.setOut(new PrintStream(printed, false, StandardCharsets.UTF_8));
+            DbDo.main(args.toArray(new String[0]));
+            System.out.flush();
+        }
+        finally {
+            System.setOut(stdout);
+        }
+        long nanos = System.nanoTime() - start;
+
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += collector.getCollectionCount();
+            gcMillis += collector.getCollectionTime();
+        }
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : heapPools) {
+            peakHeap += pool.getPeakUsage().getUsed();
+        }
+
+        long rows = Shape.of(url).rows;
+        double seconds = nanos / 1e9;
+        System.out.println(String.format(
+            Locale.ROOT,
+            "%-12s %12d %10.2f %14.0f %12.1f %12.1f %10d %10d",
+            name, rows, seconds, rows / seconds, printed.count / 1e6, peakHeap / 1e6, gcCount, gcMillis
+        ));
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            count += length;
+        }
+    }
+
+    /**
+     * Rows, columns and value width parsed from a synthetic url such as
+     * 'jdbc:synthetic:rows=1000;columns=10;width=16'. Columns cycle through every PostgresType.
+     */
+    static class Shape {
+        long rows = 1000;
+        int columns = DbDo.PostgresType.values().length;
+        int width = 16;
+
+        static Shape of(String url) {
+            Shape shape = new Shape();
+            for (String setting : url.substring(SyntheticDriver.PREFIX.length()).split(";")) {
+                if (setting.isBlank()) continue;
+
+                String[] parts = setting.split("=", 2);
+                switch (parts[0]) {
+                    case "rows" -> shape.rows = Long.parseLong(parts[1]);
+                    case "columns" -> shape.columns = Integer.parseInt(parts[1]);
+                    case "width" -> shape.width = Integer.parseInt(parts[1]);
+                    default -> throw new IllegalArgumentException("Unknown synthetic setting '" + parts[0] + "'");
+                }
+            }
+            return shape;
+        }
+    }
+
+    /**
+     * A jdbc driver whose connections answer every query with generated rows of the shape given
+     * in the url. It understands the wrapper ValueRewrite puts around queries, cutting values
+     * short and adding size columns like postgres would, so the rewrite path is measured too.
+     */
+    public static class SyntheticDriver implements Driver {
+
+        static final String PREFIX = "jdbc:synthetic:";
+
+        /** how many distinct rows are generated per column and then repeated */
+        private static final int DISTINCT_ROWS = 64;
+
+        private static final Pattern LENGTH_COLUMN = Pattern.compile("octet_length\\(dbdo_q\\.dbdo_c(\\d+)");
+        private static final Pattern TEXT_LIMIT = Pattern.compile("left\\(dbdo_q\\.dbdo_c(\\d+)::text, (\\d+)\\)");
+        private static final Pattern BINARY_LIMIT = Pattern.compile("substring\\(dbdo_q\\.dbdo_c(\\d+) from 1 for (\\d+)\\)");
+
+        @Override
+        public Connection connect(String url, Properties info) throws SQLException {
+            if (!acceptsURL(url)) return null;
+
+            Shape shape = Shape.of(url);
+            DbDo.PostgresType[] types = Bench.cycleTypes(shape.columns);
+            boolean[] autoCommit = {true};
+
+            return proxy(Connection.class, (proxy, method, args) -> switch (method.getName()) {
+                case "createStatement" -> statement(shape, types, null);
+                case "prepareStatement" -> statement(shape, types, (String) args[0]);
+                case "getAutoCommit" -> autoCommit[0];
+                case "setAutoCommit" -> {
+                    autoCommit[0] = (boolean) args[0];
+                    yield null;
+                }
+                case "isValid" -> true;
+                // DbDo reads the server's transaction state through BaseConnection to decide on 
+                // the buffered cursor path, so report it like a real connection would
+                case "isWrapperFor" -> args[0] == BaseConnection.class;
+                case "unwrap" -> {
+                    if (args[0] != BaseConnection.class) throw new SQLException("Not a wrapper for " + args[0]);
+                    yield proxy(BaseConnection.class, (inner, innerMethod, innerArgs) -> switch (innerMethod.getName()) {
+                        case "getTransactionState" -> autoCommit[0] ? TransactionState.IDLE : TransactionState.OPEN;
+                        default -> throw new SQLFeatureNotSupportedException(innerMethod.getName());
+                    });
+                }
+                case "isClosed", "isReadOnly" -> false;
+                case "hashCode" -> System.identityHashCode(proxy);
+                case "equals" -> proxy == args[0];
+                case "setReadOnly", "commit", "rollback", "close" -> null;
+                default -> throw new SQLFeatureNotSupportedException(method.getName());
+            });
+        }
+
+        private static PreparedStatement statement(Shape shape, DbDo.PostgresType[] types, String preparedSql) {
+            ResultSet[] pending = {null};
+
+            return proxy(PreparedStatement.class, (proxy, method, args) -> switch (method.getName()) {
+                case "execute" -> {
+                    pending[0] = resultSet(shape, types, args != null ? (String) args[0] : preparedSql);
+                    yield true;
+                }
+                case "executeQuery" -> resultSet(shape, types, args != null ? (String) args[0] : preparedSql);
+                case "getResultSet" -> {
+                    ResultSet resultSet = pending[0];
+                    pending[0] = null;
+                    yield resultSet;
+                }
+                case "getMetaData" -> metaData(types, new HashMap<>());
+                case "getMoreResults" -> false;
+                case "getUpdateCount" -> -1;
+                case "setFetchSize", "close" -> null;
+                default -> throw new SQLFeatureNotSupportedException(method.getName());
+            });
+        }
+
+        private static ResultSet resultSet(Shape shape, DbDo.PostgresType[] types, String sql) {
+            // columns ValueRewrite asked for a size column on, and how short it wanted each cut
+            Map<Integer, Integer> lengthColumns = new HashMap<>();
+            Matcher lengths = LENGTH_COLUMN.matcher(sql);
+            while (lengths.find()) lengthColumns.put(Integer.parseInt(lengths.group(1)), Integer.MAX_VALUE);
+            for (Pattern pattern : List.of(TEXT_LIMIT, BINARY_LIMIT)) {
+                Matcher limits = pattern.matcher(sql);
+                while (limits.find()) lengthColumns.put(Integer.parseInt(limits.group(1)), Integer.parseInt(limits.group(2)));
+            }
+
+            // lay out each column's values up front, with its size column right after it if it has one
+            List<Object[]> columns = new ArrayList<>();
+            for (int i = 0; i < types.length; i++) {
+                Object[] values = new Object[DISTINCT_ROWS];
+                Object[] sizes = new Object[DISTINCT_ROWS];
+                for (int row = 0; row < DISTINCT_ROWS; row++) {
+                    values[row] = Bench.value(types[i], row + 1, shape.width);
+                    if (!lengthColumns.containsKey(i)) continue;
+
+                    int limit = lengthColumns.get(i);
+                    if (values[row] instanceof byte[] bytes) {
+                        sizes[row] = (long) bytes.length;
+                        if (bytes.length > limit) values[row] = Arrays.copyOf(bytes, limit);
+                    }
+                    else {
+                        String text = values[row].toString();
+                        sizes[row] = (long) text.getBytes(StandardCharsets.UTF_8).length;
+                        values[row] = text.length() > limit ? text.substring(0, limit) : text;
+                    }
+                }
+                columns.add(values);
+                if (lengthColumns.containsKey(i)) columns.add(sizes);
+            }
+
+            long[] row = {0};
+            boolean[] wasNull = {false};
+            ResultSetMetaData metaData = metaData(types, lengthColumns);
+            return proxy(ResultSet.class, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "next": return ++row[0] <= shape.rows;
+                    case "getMetaData": return metaData;
+                    case "wasNull": return wasNull[0];
+                    case "close": return null;
+                    case "isClosed": return false;
+                    default: break;
+                }
+                if (!method.getName().startsWith("get") || args == null || !(args[0] instanceof Integer)) {
+                    throw new SQLFeatureNotSupportedException(method.getName());
+                }
+
+                int column = (int) args[0] - 1;
+
+                // every 16th cell of a column is null
+                wasNull[0] = (row[0] + column) % 16 == 0;
+                Object value = columns.get(column)[(int) (row[0] % DISTINCT_ROWS)];
+                return Bench.convert(wasNull[0] ? null : value, method.getReturnType());
+            });
+        }
+
+        private static ResultSetMetaData metaData(DbDo.PostgresType[] types, Map<Integer, Integer> lengthColumns) {
+            List<String> names = new ArrayList<>();
+            List<String> typeNames = new ArrayList<>();
+            for (int i = 0; i < types.length; i++) {
+                names.add(types[i] + "_col_" + (i + 1));
+                typeNames.add(types[i].name());
+                if (lengthColumns.containsKey(i)) {
+                    names.add("octet_length");
+                    typeNames.add("int4");
+                }
+            }
+
+            return proxy(ResultSetMetaData.class, (proxy, method, args) -> switch (method.getName()) {
+                case "getColumnCount" -> names.size();
+                case "getColumnName", "getColumnLabel" -> names.get((int) args[0] - 1);
+                case "getColumnTypeName" -> typeNames.get((int) args[0] - 1);
+                default -> throw new SQLFeatureNotSupportedException(method.getName());
+            });
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+            return (T) Proxy.newProxyInstance(LoadTest.class.getClassLoader(), new Class<?>[]{ type }, handler);
+        }
+
+        @Override
+        public boolean acceptsURL(String url) {
+            return url != null && url.startsWith(PREFIX);
+        }
+
+        @Override
+        public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+            return new DriverPropertyInfo[0];
+        }
+
+        @Override
+        public int getMajorVersion() {
+            return 1;
+        }
+
+        @Override
+        public int getMinorVersion() {
+            return 0;
+        }
+
+        @Override
+        public boolean jdbcCompliant() {
+            return false;
+        }
+
+        @Override
+        public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            throw new SQLFeatureNotSupportedException();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Checks for the hand written lexers in DbDo against the edge cases that are easy to break:
+ * dollar quotes, nested comments, E'' escapes, casts next to ':name' placeholders, quoted csv
+ * fields with line breaks in them and the like. Everything runs in memory, so no database is
+ * needed. Prints each check that fails and exits non zero if any did.
+ *
+ * Run with 'sh parsecheck.sh', or 'sh parsecheck.sh split' to only run checks whose name contains 'split'
+ */
+public class ParseCheck {
+
+    private static String filter;
+    private static int run = 0;
+    private static int failed = 0;
+
+    public static void main(String[] args) throws Exception {
+        filter = args.length > 0 ? args[0] : "";
+
+        // splitting scripts into statements
+        check("split/plain", DbDo.splitStatements("select 1; select 2"), List.of("select 1", "select 2"));
+        check("split/trailing semicolon", DbDo.splitStatements("select 1;\n"), List.of("select 1"));
+        check("split/empty statements", DbDo.splitStatements(";; select 1 ;;"), List.of("select 1"));
+        check("split/comment only statements", DbDo.splitStatements("-- just a note;\n/* and; another */;select 1"), List.of("select 1"));
+        check("split/line comment", DbDo.splitStatements("select 1 -- not; here\n; select 2"), List.of("select 1 -- not; here", "select 2"));
+        check("split/nested comment", DbDo.splitStatements("select /* a /* b; */ c; */ 1; select 2"), List.of("select /* a /* b; */ c; */ 1", "select 2"));
+        check("split/string", DbDo.splitStatements("select 'a;b'; select 2"), List.of("select 'a;b'", "select 2"));
+        check("split/doubled quote", DbDo.splitStatements("select 'it''s; fine'; select 2"), List.of("select 'it''s; fine'", "select 2"));
+        check("split/escape string", DbDo.splitStatements("select E'a\\';b'; select 2"), List.of("select E'a\\';b'", "select 2"));
+        check("split/backslash outside escape string", DbDo.splitStatements("select 'a\\'; select 2"), List.of("select 'a\\'", "select 2"));
+        check("split/identifier ending in e", DbDo.splitStatements("select name'a\\'; select 2"), List.of("select name'a\\'", "select 2"));
+        check("split/quoted identifier", DbDo.splitStatements("select 1 as \"a;b\"; select 2"), List.of("select 1 as \"a;b\"", "select 2"));
+        check(
+            "split/dollar quote",
+            DbDo.splitStatements("do $$ begin perform 1; end $$; select 2"),
+            List.of("do $$ begin perform 1; end $$", "select 2")
+        );
+        check(
+            "split/tagged dollar quote",
+            DbDo.splitStatements("create function f() returns int as $body$ select $$;$$; select 1; $body$ language sql; select 2"),
+            List.of("create function f() returns int as $body$ select $$;$$; select 1; $body$ language sql", "select 2")
+        );
+        check("split/positional parameter", DbDo.splitStatements("select $1; select $2"), List.of("select $1", "select $2"));
+        check("split/dollar in identifier", DbDo.splitStatements("select a$b$c; select 2"), List.of("select a$b$c", "select 2"));
+        check("split/unterminated string", DbDo.splitStatements("select 'a; select 2"), List.of("select 'a; select 2"));
+
+        // ':name' placeholders
+        checkParameters("params/plain", "select * from t where id = :id and name = :name", "select * from t where id = ? and name = ?", List.of("id", "name"));
+        checkParameters("params/repeated", "select :a, :b, :a", "select ?, ?, ?", List.of("a", "b", "a"));
+        checkParameters("params/cast", "select :id::int, '1'::text", "select ?::int, '1'::text", List.of("id"));
+        checkParameters("params/cast without space", "select x::date from t where y = :day", "select x::date from t where y = ?", List.of("day"));
+        checkParameters("params/array slice", "select arr[lo:hi], arr[:n], arr[1:2] from t where k = :k", "select arr[lo:hi], arr[:n], arr[1:2] from t where k = ?", List.of("k"));
+        checkParameters("params/nested slice", "select arr[a[1]:hi] from t", "select arr[a[1]:hi] from t", List.of());
+        checkParameters("params/question mark", "select doc ? 'key', doc ?| array['a'] from t where id = :id", "select doc ?? 'key', doc ??| array['a'] from t where id = ?", List.of("id"));
+        checkParameters("params/string", "select ':no', 'it''s :no' from t where id = :id", "select ':no', 'it''s :no' from t where id = ?", List.of("id"));
+        checkParameters("params/escape string", "select E'\\' :no', :yes", "select E'\\' :no', ?", List.of("yes"));
+        checkParameters("params/quoted identifier", "select \":no\" from t where id = :id", "select \":no\" from t where id = ?", List.of("id"));
+        checkParameters("params/dollar quote", "select $$ :no ? $$, $tag$ :no $tag$, :yes", "select $$ :no ? $$, $tag$ :no $tag$, ?", List.of("yes"));
+        checkParameters("params/comments", "select :a -- :no ?\n/* :no /* :no */ ? */ , :b", "select ? -- :no ?\n/* :no /* :no */ ? */ , ?", List.of("a", "b"));
+        checkParameters("params/digits and colon", "select '10:30'::time, 1:2, :_x1", "select '10:30'::time, 1:2, ?", List.of("_x1"));
+
+        // csv records
+        checkCsv("csv/plain", "a,b,c\n1,2,3\n", ',', List.of(List.of("a", "b", "c"), List.of("1", "2", "3")));
+        checkCsv("csv/no final line break", "a,b\n1,2", ',', List.of(List.of("a", "b"), List.of("1", "2")));
+        checkCsv("csv/crlf", "a,b\r\n1,2\r\n", ',', List.of(List.of("a", "b"), List.of("1", "2")));
+        checkCsv("csv/quoted delimiter", "\"a,b\",c\n", ',', List.of(List.of("a,b", "c")));
+        checkCsv("csv/doubled quote", "\"say \"\"hi\"\"\",x\n", ',', List.of(List.of("say \"hi\"", "x")));
+        checkCsv("csv/quoted line break", "id,note\n1,\"two\nlines\"\n2,\"crlf\r\ninside\"\n", ',', List.of(List.of("id", "note"), List.of("1", "two\nlines"), List.of("2", "crlf\r\ninside")));
+        checkCsv("csv/quoted line break in header", "\"first\nname\",last\nada,lovelace\n", ',', List.of(List.of("first\nname", "last"), List.of("ada", "lovelace")));
+        checkCsv("csv/tab delimiter", "a\tb,c\n\"x\ty\"\tz\n", '\t', List.of(List.of("a", "b,c"), List.of("x\ty", "z")));
+        checkCsv("csv/blank line", "a\n\nb\n", ',', List.of(List.of("a"), Collections.singletonList(null), List.of("b")));
+        checkCsv("csv/empty and quoted empty", ",\"\",x\n", ',', List.of(Arrays.asList(null, "", "x")));
+        checkCsvFails("csv/unterminated quote", "a,\"b\n", ',');
+
+        System.out.println(run + " checks, " + failed + " failed");
+        if (failed > 0) System.exit(1);
+    }
+
+    private static void checkParameters(String name, String sql, String expectedSql, List<String> expectedNames) {
+        DbDo.NamedParameters parameters = DbDo.NamedParameters.parse(sql);
+        check(name + " sql", parameters.sql, expectedSql);
+        check(name + " names", parameters.names, expectedNames);
+    }
+
+    private static void checkCsv(String name, String text, char delimiter, List<List<String>> expected) throws IOException {
+        check(name, readCsv(text, delimiter), expected);
+    }
+
+    private static void checkCsvFails(String name, String text, char delimiter) {
+        try {
+            check(name, readCsv(text, delimiter), "an IOException");
+        }
+        catch (IOException e) {
+            check(name, true, true);
+        }
+    }
+
+    private static List<List<String>> readCsv(String text, char delimiter) throws IOException {
+        DbDo.CsvReader reader = new DbDo.CsvReader(new StringReader(text), delimiter);
+        List<List<String>> records = new ArrayList<>();
+        List<String> record;
+        while ((record = reader.readRecord()) != null) records.add(record);
+        return records;
+    }
+
+    private static void check(String name, Object actual, Object expected) {
+        if (!name.contains(filter)) return;
+
+        run++;
+        if (!actual.equals(expected)) {
+            failed++;
+            System.out.println("FAILED " + name);
+            System.out.println("  expected " + expected);
+            System.out.println("  but got  " + actual);
+        }
+    }
+}
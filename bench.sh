@@ -0,0 +1,14 @@
+# runs the decode and rendering microbenchmarks in Bench.java against DbDo.java, no database needed
+# pass part of a benchmark name to only run the matching ones, for example:
+#
+#   sh bench.sh prettyPrintRecords
+
+
+
+dir=$(dirname "$0")
+out=$(mktemp -d)
+
+javac -cp "$dir/postgresql-42.7.5.jar" -d "$out" "$dir/DbDo.java" "$dir/Bench.java" && \
+java -cp "$out:$dir/postgresql-42.7.5.jar" Bench "$@"
+
+rm -rf "$out"
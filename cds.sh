@@ -0,0 +1,26 @@
+# builds DbDo.jar from DbDo.java into build/ along with a class data sharing archive for it, so later runs skip 
+# most class loading and verification. the DbDo.jar checked in at the top is left alone. pass the args of a typical run so the postgres driver classes end up in the archive too, 
+# for example:
+#
+#   sh cds.sh -d jdbc:postgresql://localhost:5432/db_do -u postgres -p password -s brandon.sql
+#
+# then run DbDo with the archive:
+#
+#   java -XX:SharedArchiveFile=build/DbDo.jsa -XX:TieredStopAtLevel=1 -jar build/DbDo.jar ...
+#
+# rerun it whenever DbDo.java or the java version changes, the archive only works with the jar it was made from
+
+
+
+dir=$(cd "$(dirname "$0")" && pwd)
+build="$dir/build"
+out=$(mktemp -d)
+mkdir -p "$build"
+
+# the jar holds the driver too so it runs on its own
+javac -cp "$dir/postgresql-42.7.5.jar" -d "$out" "$dir/DbDo.java" && \
+(cd "$out" && jar xf "$dir/postgresql-42.7.5.jar" && rm -f META-INF/MANIFEST.MF) && \
+jar --create --file "$build/DbDo.jar" --main-class DbDo -C "$out" . && \
+java -XX:ArchiveClassesAtExit="$build/DbDo.jsa" -jar "$build/DbDo.jar" "$@"
+
+rm -rf "$out"
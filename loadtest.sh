@@ -0,0 +1,14 @@
+# runs DbDo end to end against big synthetic result sets from an in process fake driver, no database needed
+# name scenarios to pick which run (1m, 10m, 100m, wide, big-values), and pass DbDo flags through, for example:
+#
+#   sh loadtest.sh 10m wide --stream
+
+
+
+dir=$(dirname "$0")
+out=$(mktemp -d)
+
+javac -cp "$dir/postgresql-42.7.5.jar" -d "$out" "$dir/DbDo.java" "$dir/Bench.java" "$dir/LoadTest.java" && \
+java -cp "$out:$dir/postgresql-42.7.5.jar" LoadTest "$@"
+
+rm -rf "$out"
@@ -0,0 +1,16 @@
+# runs the lexer and parser checks in ParseCheck.java against DbDo.java, no database needed
+# pass part of a check name to only run the matching ones, for example:
+#
+#   sh parsecheck.sh split
+
+
+
+dir=$(dirname "$0")
+out=$(mktemp -d)
+
+javac -cp "$dir/postgresql-42.7.5.jar" -d "$out" "$dir/DbDo.java" "$dir/ParseCheck.java" && \
+java -cp "$out:$dir/postgresql-42.7.5.jar" ParseCheck "$@"
+status=$?
+
+rm -rf "$out"
+exit $status